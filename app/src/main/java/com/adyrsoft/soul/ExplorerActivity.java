@@ -37,6 +37,7 @@ import com.adyrsoft.soul.ui.BackgroundTasksFragment;
 import com.adyrsoft.soul.ui.BlankFragment;
 import com.adyrsoft.soul.ui.DynamicFragmentPagerAdapter;
 import com.adyrsoft.soul.ui.FileSystemErrorDialog;
+import com.adyrsoft.soul.ui.ProgressFormatter;
 import com.adyrsoft.soul.ui.TaskProgressDialogFragment;
 
 import java.util.ArrayList;
@@ -283,11 +284,9 @@ public class ExplorerActivity extends AppCompatActivity implements ExplorerFragm
         }
 
         if (mProgressDialogTarget == task) {
-            int totalFiles = info.getTotalFiles();
-            int processedFiles = info.getProcessedFiles();
-
-            mProgressDialogFragment.setMax(totalFiles);
-            mProgressDialogFragment.setProgress(processedFiles);
+            mProgressDialogFragment.setMax(ProgressFormatter.PROGRESS_MAX);
+            mProgressDialogFragment.setProgress(ProgressFormatter.toProgressBarValue(info));
+            mProgressDialogFragment.setThroughput(ProgressFormatter.formatThroughput(this, info));
         }
     }
 
@@ -356,6 +355,11 @@ public class ExplorerActivity extends AppCompatActivity implements ExplorerFragm
             case AUTHENTICATION_ERROR:
                 mErrorDialog.setErrorDescription(getString(R.string.remote_host_auth_error_desc));
                 break;
+            case CHECKSUM_MISMATCH:
+                mErrorDialog.setErrorDescription(getString(R.string.checksum_mismatch_error_desc));
+                mErrorDialog.setAffectedFile(errorInfo.getDestinyUri());
+                mErrorDialog.setRetryButtonLabel(getString(R.string.copy_again_button_label));
+                break;
         }
 
         Log.d(TAG, "Showing error dialog");
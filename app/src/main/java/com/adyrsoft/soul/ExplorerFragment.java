@@ -201,6 +201,8 @@ public class ExplorerFragment extends Fragment implements DirectoryPathView.OnPa
     private ExplorerState mExplorerState;
     private HashSet<Entry> mSelectedFileSet = new HashSet<>();
     private FileTransferService mService;
+    // Tasks finishing while paused aren't reported, so the listing is reloaded when resumed
+    private boolean mPaused;
     private Menu mMenu;
     private TaskProgressDialogFragment mProgressDialogFragment;
     private List<Uri> mFileClipboard = new ArrayList<>();
@@ -352,12 +354,32 @@ public class ExplorerFragment extends Fragment implements DirectoryPathView.OnPa
                 setCurrentDirectory(mCurrentDir);
             }
         }
-        mService.addTaskProgressListener(this);
+        // Until resumed, onResume() subscribes instead
+        if (isResumed()) {
+            mService.addTaskProgressListener(this);
+        }
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        // Only listens while visible, the service reports progress less often to nobody
+        if (mService != null) {
+            mService.addTaskProgressListener(this);
+            if (mPaused && mExplorerState != ExplorerState.UNREADY && mCurrentDir != null) {
+                refresh();
+            }
+        }
+        mPaused = false;
     }
 
     @Override
     public void onPause() {
         super.onPause();
+        mPaused = true;
+        if (mService != null) {
+            mService.removeTaskProgressListener(this);
+        }
     }
 
     @Override
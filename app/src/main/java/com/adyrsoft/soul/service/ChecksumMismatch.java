@@ -0,0 +1,16 @@
+package com.adyrsoft.soul.service;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Used by LocalFSEntryDuplicator to report that a copied file doesn't read back as the data
+ * that was written to it.
+ */
+public class ChecksumMismatch extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public ChecksumMismatch(File dstEntry, String expected, String actual) {
+        super("File " + dstEntry.getPath() + " has digest " + actual + " instead of " + expected);
+    }
+}
@@ -0,0 +1,300 @@
+package com.adyrsoft.soul.service;
+
+import android.net.Uri;
+import android.util.Log;
+
+import com.adyrsoft.soul.utils.FileUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-disk record of the progress of a copy, so the same copy submitted again after the service
+ * was killed or the task was cancelled resumes where it was left instead of starting from zero.
+ *
+ * Each copy, identified by its working directory, sources and destination, gets two files:
+ * an append-only list of the entries already copied and a small checkpoint file with the byte
+ * offset reached in the files being copied right now. Entries are identified by their path
+ * relative to the working directory, and record the length and modification time the source had
+ * when it was copied. An entry whose source no longer matches them is ignored, so a source that
+ * changed between runs is copied again instead of being skipped or resumed from stale data.
+ *
+ * Journal I/O failures never fail the copy, they just disable the journal for the rest of it.
+ */
+public class CopyJournal {
+    private static final String TAG = CopyJournal.class.getSimpleName();
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String DONE_SUFFIX = ".done";
+    private static final String CHECKPOINT_SUFFIX = ".ckpt";
+
+    // Bytes a file should advance between checkpoints, each one costs syncing the destination
+    public static final long CHECKPOINT_INTERVAL_BYTES = 8 * 1024 * 1024;
+
+    private final File mDoneFile;
+    private final File mCheckpointFile;
+    private final HashMap<String, Entry> mDone = new HashMap<>();
+    private final HashMap<String, Entry> mResumeOffsets = new HashMap<>();
+    private final HashMap<String, Entry> mInProgress = new HashMap<>();
+    private Writer mDoneWriter;
+    private boolean mBroken;
+
+    // Offset reached in a file, along with the version of its source it was copied from
+    private static class Entry {
+        final long mOffset;
+        final long mSourceLength;
+        final long mSourceModified;
+
+        Entry(long offset, long sourceLength, long sourceModified) {
+            mOffset = offset;
+            mSourceLength = sourceLength;
+            mSourceModified = sourceModified;
+        }
+
+        boolean matches(long sourceLength, long sourceModified) {
+            return mSourceLength == sourceLength && mSourceModified == sourceModified;
+        }
+    }
+
+    private CopyJournal(File doneFile, File checkpointFile) {
+        mDoneFile = doneFile;
+        mCheckpointFile = checkpointFile;
+    }
+
+    /**
+     * Opens the journal of the given copy inside journalDir, loading whatever a previous run of the
+     * same copy left in it.
+     */
+    public static CopyJournal open(File journalDir, Uri srcWD, List<Uri> srcs, Uri dst) {
+        return open(journalDir, keyFor(srcWD, srcs, dst));
+    }
+
+    // Opens the journal stored under the given key
+    static CopyJournal open(File journalDir, String key) {
+        CopyJournal journal = new CopyJournal(new File(journalDir, key + DONE_SUFFIX), new File(journalDir, key + CHECKPOINT_SUFFIX));
+
+        try {
+            if (!journalDir.isDirectory() && !journalDir.mkdirs()) {
+                throw new IOException("Couldn't create journal directory " + journalDir.getPath());
+            }
+            journal.load();
+            journal.mDoneWriter = new OutputStreamWriter(new FileOutputStream(journal.mDoneFile, true), UTF8);
+        } catch (IOException e) {
+            Log.w(TAG, "Copy journal unavailable, the copy won't be resumable", e);
+            journal.mBroken = true;
+        }
+
+        return journal;
+    }
+
+    private static String keyFor(Uri srcWD, List<Uri> srcs, Uri dst) {
+        StringBuilder identity = new StringBuilder();
+        identity.append(srcWD.getPath()).append('\n').append(dst.getPath());
+        for (Uri src : srcs) {
+            identity.append('\n').append(src.getPath());
+        }
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(identity.toString().getBytes(UTF8));
+            StringBuilder key = new StringBuilder();
+            for (byte b : hash) {
+                key.append(String.format("%02x", b & 0xff));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(identity.toString().hashCode());
+        }
+    }
+
+    private void load() throws IOException {
+        if (mDoneFile.exists()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mDoneFile), UTF8));
+            try {
+                // length \t modified \t path
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    if (fields.length != 3) {
+                        // Half written line, or left by a version that didn't record sources
+                        continue;
+                    }
+
+                    try {
+                        long length = Long.parseLong(fields[0]);
+                        mDone.put(decode(fields[2]), new Entry(length, length, Long.parseLong(fields[1])));
+                    } catch (IllegalArgumentException e) {
+                        // Half written line, ignored
+                    }
+                }
+            } finally {
+                FileUtils.closeSilently(reader);
+            }
+        }
+
+        if (mCheckpointFile.exists()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mCheckpointFile), UTF8));
+            try {
+                // offset \t length \t modified \t path
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    if (fields.length != 4) {
+                        continue;
+                    }
+
+                    try {
+                        Entry entry = new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+                        mResumeOffsets.put(decode(fields[3]), entry);
+                    } catch (IllegalArgumentException e) {
+                        // Half written line, ignored
+                    }
+                }
+            } finally {
+                FileUtils.closeSilently(reader);
+            }
+        }
+    }
+
+    /**
+     * Whether the given entry was copied by a previous run from a source with the given length and
+     * modification time
+     */
+    public synchronized boolean isDone(String relativePath, long sourceLength, long sourceModified) {
+        Entry done = mDone.get(relativePath);
+        return done != null && done.matches(sourceLength, sourceModified);
+    }
+
+    /**
+     * Offset up to which the given file was copied by a previous run, or 0 if it must be copied
+     * from the beginning, which includes when its source changed since.
+     */
+    public synchronized long getResumeOffset(String relativePath, long sourceLength, long sourceModified) {
+        Entry checkpoint = mResumeOffsets.get(relativePath);
+        return checkpoint != null && checkpoint.matches(sourceLength, sourceModified) ? checkpoint.mOffset : 0;
+    }
+
+    /**
+     * Records that the given entry has been copied. The next run skips it, so a file must have
+     * been synced to its destination first, like for checkpoints.
+     */
+    public synchronized void markDone(String relativePath, long sourceLength, long sourceModified) {
+        mDone.put(relativePath, new Entry(sourceLength, sourceLength, sourceModified));
+        boolean hadCheckpoint = mInProgress.remove(relativePath) != null;
+        hadCheckpoint |= mResumeOffsets.remove(relativePath) != null;
+
+        if (mBroken) {
+            return;
+        }
+
+        try {
+            mDoneWriter.write(sourceLength + "\t" + sourceModified + "\t" + encode(relativePath));
+            mDoneWriter.write('\n');
+            mDoneWriter.flush();
+
+            if (hadCheckpoint) {
+                saveCheckpoints();
+            }
+        } catch (IOException e) {
+            onJournalError(e);
+        }
+    }
+
+    /**
+     * Saves that the given file has been copied up to offset. Its destination must have been
+     * synced up to offset already, a checkpoint ahead of the data on storage would make a resumed
+     * copy skip whatever was lost with the page cache. Callers checkpoint every
+     * CHECKPOINT_INTERVAL_BYTES, counted from the offset the file was resumed from, so files
+     * smaller than that never cost a checkpoint and are just copied again.
+     * @param sourceLength length of the source when its copy started
+     * @param sourceModified modification time of the source when its copy started
+     */
+    public synchronized void checkpoint(String relativePath, long offset, long sourceLength, long sourceModified) {
+        mInProgress.put(relativePath, new Entry(offset, sourceLength, sourceModified));
+
+        if (mBroken) {
+            return;
+        }
+
+        try {
+            saveCheckpoints();
+        } catch (IOException e) {
+            onJournalError(e);
+        }
+    }
+
+    // Rewrites the checkpoint file through a temporary one, so it's never seen half written
+    private void saveCheckpoints() throws IOException {
+        HashMap<String, Entry> checkpoints = new HashMap<>(mResumeOffsets);
+        checkpoints.putAll(mInProgress);
+
+        File tmpFile = new File(mCheckpointFile.getPath() + ".tmp");
+        FileOutputStream os = new FileOutputStream(tmpFile);
+        try {
+            Writer writer = new OutputStreamWriter(os, UTF8);
+            for (Map.Entry<String, Entry> checkpoint : checkpoints.entrySet()) {
+                Entry entry = checkpoint.getValue();
+                writer.write(entry.mOffset + "\t" + entry.mSourceLength + "\t" + entry.mSourceModified + "\t");
+                writer.write(encode(checkpoint.getKey()));
+                writer.write('\n');
+            }
+            writer.flush();
+            os.getFD().sync();
+        } finally {
+            FileUtils.closeSilently(os);
+        }
+
+        if (!tmpFile.renameTo(mCheckpointFile)) {
+            throw new IOException("Couldn't replace checkpoint file " + mCheckpointFile.getPath());
+        }
+    }
+
+    // Paths are percent-encoded, so they never contain the tabs and line breaks of the format
+    private static String encode(String path) {
+        try {
+            return URLEncoder.encode(path, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String decode(String path) {
+        try {
+            return URLDecoder.decode(path, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private void onJournalError(IOException e) {
+        Log.w(TAG, "Copy journal failed, the rest of the copy won't be resumable", e);
+        mBroken = true;
+    }
+
+    // Keeps the journal on disk so the copy can be resumed later. Checkpoints are saved as they
+    // are taken, so only the list of entries copied needs closing.
+    public synchronized void close() {
+        FileUtils.closeSilently(mDoneWriter);
+    }
+
+    // Called once the copy completed, nothing is left to resume
+    public synchronized void delete() {
+        FileUtils.closeSilently(mDoneWriter);
+        mDoneFile.delete();
+        mCheckpointFile.delete();
+    }
+}
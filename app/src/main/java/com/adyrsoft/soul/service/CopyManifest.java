@@ -0,0 +1,76 @@
+package com.adyrsoft.soul.service;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Digest of every file copied by a verified copy. It's the output of the copy FileSystemTask.
+ */
+public class CopyManifest {
+    public static class Entry {
+        private final String mRelativePath;
+        private final long mSize;
+        private final String mDigest;
+        private final boolean mVerified;
+
+        public Entry(String relativePath, long size, String digest, boolean verified) {
+            mRelativePath = relativePath;
+            mSize = size;
+            mDigest = digest;
+            mVerified = verified;
+        }
+
+        public String getRelativePath() {
+            return mRelativePath;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+
+        // Hex encoded digest, or null if the file was copied by a previous run of a resumed copy
+        public String getDigest() {
+            return mDigest;
+        }
+
+        // Whether the destination was read back and found identical
+        public boolean isVerified() {
+            return mVerified;
+        }
+    }
+
+    private final String mAlgorithm;
+    private final ArrayList<Entry> mEntries = new ArrayList<>();
+
+    public CopyManifest(String algorithm) {
+        mAlgorithm = algorithm;
+    }
+
+    public String getAlgorithm() {
+        return mAlgorithm;
+    }
+
+    // Files can be added from several copy workers at once
+    synchronized void add(Entry entry) {
+        mEntries.add(entry);
+    }
+
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<>(mEntries);
+    }
+
+    /**
+     * Writes the manifest in the format used by sha256sum and similar tools
+     */
+    public synchronized void writeTo(Writer writer) throws IOException {
+        for (Entry entry : mEntries) {
+            writer.write(entry.getDigest() != null ? entry.getDigest() : "-");
+            writer.write("  ");
+            writer.write(entry.getRelativePath());
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+}
@@ -0,0 +1,469 @@
+package com.adyrsoft.soul.service;
+
+import com.adyrsoft.soul.utils.ContentDigest;
+import com.adyrsoft.soul.utils.TokenBucket;
+
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Options that tune how a copy FileSystemTask is carried out
+ */
+public class CopyOptions {
+    public enum Verification {
+        // Data is copied without computing any digest
+        NONE,
+
+        // A digest of each file is computed while copying it and stored in the CopyManifest
+        CHECKSUM,
+
+        // Like CHECKSUM, and each destination file is read back afterwards and compared
+        VERIFY
+    }
+
+    public enum Durability {
+        // Files are left for the kernel to write back whenever it sees fit
+        NONE,
+
+        // Each file is fsync'ed before it's reported as copied
+        PER_FILE,
+
+        // Every copied file is fsync'ed once the whole task is done, letting the kernel write
+        // them back in the meantime
+        BATCHED
+    }
+
+    public enum CopyStrategy {
+        // Whatever the task's StreamDuplicator does by default
+        DEFAULT,
+
+        // Data goes through a user space buffer
+        STREAM,
+
+        // The kernel moves the data with FileChannel.transferTo wherever both ends are files
+        TRANSFER,
+
+        // Files are copied through sliding memory mappings of the source, and optionally of the
+        // destination too. Falls back to DEFAULT for copies that compute digests or leave holes.
+        MMAP,
+
+        // Each file gets the fastest of STREAM, TRANSFER and MMAP for its size and volumes, as
+        // measured by a CopyStrategySelector. Falls back to DEFAULT like MMAP does.
+        AUTO
+    }
+
+    public static final int DEFAULT_MMAP_WINDOW_SIZE = 8 * 1024 * 1024;
+    public static final long DEFAULT_RANGE_SPLIT_THRESHOLD = 256 * 1024 * 1024;
+    public static final int DEFAULT_RANGE_SPLIT_PARALLELISM = 4;
+    public static final long DEFAULT_DELTA_THRESHOLD = 64 * 1024 * 1024;
+    public static final int DEFAULT_SCAN_PARALLELISM = 4;
+
+    private int mParallelism;
+    private long mRangeSplitThreshold;
+    private int mRangeSplitParallelism;
+    private boolean mResumable;
+    private Verification mVerification;
+    private String mDigestAlgorithm;
+    private boolean mCompareContents;
+    private boolean mDeleteExtraneous;
+    private long mDeltaThreshold;
+    private boolean mSparse;
+    private boolean mPreallocate;
+    private Durability mDurability;
+    private boolean mPageCacheFriendly;
+    private CopyStrategy mCopyStrategy;
+    private int mMmapWindowSize;
+    private boolean mMapDestination;
+    private long mBandwidthLimit;
+    private int mScanParallelism;
+
+    public CopyOptions(Builder builder) {
+        mParallelism = builder.getParallelism();
+        mRangeSplitThreshold = builder.getRangeSplitThreshold();
+        mRangeSplitParallelism = builder.getRangeSplitParallelism();
+        mResumable = builder.isResumable();
+        mVerification = builder.getVerification();
+        mDigestAlgorithm = builder.getDigestAlgorithm();
+        mCompareContents = builder.isCompareContents();
+        mDeleteExtraneous = builder.isDeleteExtraneous();
+        mDeltaThreshold = builder.getDeltaThreshold();
+        mSparse = builder.isSparse();
+        mPreallocate = builder.isPreallocate();
+        mDurability = builder.getDurability();
+        mPageCacheFriendly = builder.isPageCacheFriendly();
+        mCopyStrategy = builder.getCopyStrategy();
+        mMmapWindowSize = builder.getMmapWindowSize();
+        mMapDestination = builder.isMapDestination();
+        mBandwidthLimit = builder.getBandwidthLimit();
+        mScanParallelism = builder.getScanParallelism();
+    }
+
+    public int getParallelism() {
+        return mParallelism;
+    }
+
+    public long getRangeSplitThreshold() {
+        return mRangeSplitThreshold;
+    }
+
+    public int getRangeSplitParallelism() {
+        return mRangeSplitParallelism;
+    }
+
+    public boolean isResumable() {
+        return mResumable;
+    }
+
+    public Verification getVerification() {
+        return mVerification;
+    }
+
+    public String getDigestAlgorithm() {
+        return mDigestAlgorithm;
+    }
+
+    public boolean isCompareContents() {
+        return mCompareContents;
+    }
+
+    public boolean isDeleteExtraneous() {
+        return mDeleteExtraneous;
+    }
+
+    public long getDeltaThreshold() {
+        return mDeltaThreshold;
+    }
+
+    public boolean isSparse() {
+        return mSparse;
+    }
+
+    public boolean isPreallocate() {
+        return mPreallocate;
+    }
+
+    public Durability getDurability() {
+        return mDurability;
+    }
+
+    public boolean isPageCacheFriendly() {
+        return mPageCacheFriendly;
+    }
+
+    public CopyStrategy getCopyStrategy() {
+        return mCopyStrategy;
+    }
+
+    public int getMmapWindowSize() {
+        return mMmapWindowSize;
+    }
+
+    public boolean isMapDestination() {
+        return mMapDestination;
+    }
+
+    public long getBandwidthLimit() {
+        return mBandwidthLimit;
+    }
+
+    public int getScanParallelism() {
+        return mScanParallelism;
+    }
+
+    public static class Builder {
+        private int mParallelism = 1;
+        private long mRangeSplitThreshold = DEFAULT_RANGE_SPLIT_THRESHOLD;
+        private int mRangeSplitParallelism = DEFAULT_RANGE_SPLIT_PARALLELISM;
+        private boolean mResumable = true;
+        private Verification mVerification = Verification.NONE;
+        private String mDigestAlgorithm = ContentDigest.SHA256;
+        private boolean mCompareContents;
+        private boolean mDeleteExtraneous;
+        private long mDeltaThreshold = DEFAULT_DELTA_THRESHOLD;
+        private boolean mSparse;
+        private boolean mPreallocate = true;
+        private Durability mDurability = Durability.NONE;
+        private boolean mPageCacheFriendly = true;
+        private CopyStrategy mCopyStrategy = CopyStrategy.DEFAULT;
+        private int mMmapWindowSize = DEFAULT_MMAP_WINDOW_SIZE;
+        private boolean mMapDestination;
+        private long mBandwidthLimit = TokenBucket.UNLIMITED;
+        private int mScanParallelism = DEFAULT_SCAN_PARALLELISM;
+
+        public Builder() { }
+
+        public Builder(CopyOptions options) {
+            mParallelism = options.mParallelism;
+            mRangeSplitThreshold = options.mRangeSplitThreshold;
+            mRangeSplitParallelism = options.mRangeSplitParallelism;
+            mResumable = options.mResumable;
+            mVerification = options.mVerification;
+            mDigestAlgorithm = options.mDigestAlgorithm;
+            mCompareContents = options.mCompareContents;
+            mDeleteExtraneous = options.mDeleteExtraneous;
+            mDeltaThreshold = options.mDeltaThreshold;
+            mSparse = options.mSparse;
+            mPreallocate = options.mPreallocate;
+            mDurability = options.mDurability;
+            mPageCacheFriendly = options.mPageCacheFriendly;
+            mCopyStrategy = options.mCopyStrategy;
+            mMmapWindowSize = options.mMmapWindowSize;
+            mMapDestination = options.mMapDestination;
+            mBandwidthLimit = options.mBandwidthLimit;
+            mScanParallelism = options.mScanParallelism;
+        }
+
+        public int getParallelism() {
+            return mParallelism;
+        }
+
+        /**
+         * Number of files copied at the same time. With more than one, folders are created first
+         * and then files are spread across a pool of this many worker threads.
+         */
+        public Builder setParallelism(int parallelism) {
+            if (parallelism < 1) {
+                throw new IllegalArgumentException("parallelism cannot be smaller than 1");
+            }
+            mParallelism = parallelism;
+            return this;
+        }
+
+        public long getRangeSplitThreshold() {
+            return mRangeSplitThreshold;
+        }
+
+        /**
+         * Files of at least this many bytes are copied as several byte ranges at once, using
+         * positional reads and writes on a destination sized up front.
+         */
+        public Builder setRangeSplitThreshold(long rangeSplitThreshold) {
+            mRangeSplitThreshold = rangeSplitThreshold;
+            return this;
+        }
+
+        public int getRangeSplitParallelism() {
+            return mRangeSplitParallelism;
+        }
+
+        /**
+         * Number of ranges of a big file copied at the same time. One disables range splitting.
+         */
+        public Builder setRangeSplitParallelism(int rangeSplitParallelism) {
+            if (rangeSplitParallelism < 1) {
+                throw new IllegalArgumentException("rangeSplitParallelism cannot be smaller than 1");
+            }
+            mRangeSplitParallelism = rangeSplitParallelism;
+            return this;
+        }
+
+        public boolean isResumable() {
+            return mResumable;
+        }
+
+        /**
+         * Keeps a CopyJournal of the copy, so submitting it again after it was interrupted skips
+         * the files already copied and resumes the one that was in progress.
+         */
+        public Builder setResumable(boolean resumable) {
+            mResumable = resumable;
+            return this;
+        }
+
+        public Verification getVerification() {
+            return mVerification;
+        }
+
+        public Builder setVerification(Verification verification) {
+            if (verification == null) {
+                throw new NullPointerException("verification cannot be null");
+            }
+            mVerification = verification;
+            return this;
+        }
+
+        public String getDigestAlgorithm() {
+            return mDigestAlgorithm;
+        }
+
+        /**
+         * Algorithm used when verification is enabled. ContentDigest.CRC32 or any MessageDigest
+         * algorithm. SHA-256 by default.
+         */
+        public Builder setDigestAlgorithm(String digestAlgorithm) {
+            try {
+                ContentDigest.getInstance(digestAlgorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException("Unsupported digest algorithm " + digestAlgorithm, e);
+            }
+            mDigestAlgorithm = digestAlgorithm;
+            return this;
+        }
+
+        public boolean isCompareContents() {
+            return mCompareContents;
+        }
+
+        /**
+         * Sync only. Files with the same size but a different modification time are compared byte
+         * by byte, and only copied if their contents differ.
+         */
+        public Builder setCompareContents(boolean compareContents) {
+            mCompareContents = compareContents;
+            return this;
+        }
+
+        public boolean isDeleteExtraneous() {
+            return mDeleteExtraneous;
+        }
+
+        /**
+         * Sync only. Entries found inside the synced destination folders that don't exist in the
+         * source are deleted.
+         */
+        public Builder setDeleteExtraneous(boolean deleteExtraneous) {
+            mDeleteExtraneous = deleteExtraneous;
+            return this;
+        }
+
+        public long getDeltaThreshold() {
+            return mDeltaThreshold;
+        }
+
+        /**
+         * Sync only. Changed files at least this big that already exist in the destination are
+         * updated in place, rewriting only the blocks that differ. Long.MAX_VALUE disables it.
+         */
+        public Builder setDeltaThreshold(long deltaThreshold) {
+            mDeltaThreshold = deltaThreshold;
+            return this;
+        }
+
+        public boolean isSparse() {
+            return mSparse;
+        }
+
+        /**
+         * Blocks of zeroes aren't written, leaving holes in the destination files instead, and
+         * holes of the source files are skipped without reading them where the platform can find
+         * them. Copies of sparse files keep taking only the space their data needs.
+         */
+        public Builder setSparse(boolean sparse) {
+            mSparse = sparse;
+            return this;
+        }
+
+        public boolean isPreallocate() {
+            return mPreallocate;
+        }
+
+        /**
+         * Reserve the disk space of each destination file before writing it, where the platform
+         * supports it. Enabled by default, it has no effect on sparse copies.
+         */
+        public Builder setPreallocate(boolean preallocate) {
+            mPreallocate = preallocate;
+            return this;
+        }
+
+        public Durability getDurability() {
+            return mDurability;
+        }
+
+        public Builder setDurability(Durability durability) {
+            if (durability == null) {
+                throw new NullPointerException("durability cannot be null");
+            }
+            mDurability = durability;
+            return this;
+        }
+
+        public boolean isPageCacheFriendly() {
+            return mPageCacheFriendly;
+        }
+
+        /**
+         * Flush the data of big files to the storage device while they are being copied, so the
+         * copy doesn't fill the page cache with dirty pages and starve the rest of the device.
+         * Enabled by default.
+         */
+        public Builder setPageCacheFriendly(boolean pageCacheFriendly) {
+            mPageCacheFriendly = pageCacheFriendly;
+            return this;
+        }
+
+        public CopyStrategy getCopyStrategy() {
+            return mCopyStrategy;
+        }
+
+        public Builder setCopyStrategy(CopyStrategy copyStrategy) {
+            if (copyStrategy == null) {
+                throw new NullPointerException("copyStrategy cannot be null");
+            }
+            mCopyStrategy = copyStrategy;
+            return this;
+        }
+
+        public int getMmapWindowSize() {
+            return mMmapWindowSize;
+        }
+
+        /**
+         * Bytes of a file mapped at once by the MMAP strategy. Each window is unmapped before the
+         * next one is made, so this bounds the address space the copy takes.
+         */
+        public Builder setMmapWindowSize(int mmapWindowSize) {
+            if (mmapWindowSize < 1) {
+                throw new IllegalArgumentException("mmapWindowSize cannot be smaller than 1");
+            }
+            mMmapWindowSize = mmapWindowSize;
+            return this;
+        }
+
+        public boolean isMapDestination() {
+            return mMapDestination;
+        }
+
+        /**
+         * Whether the MMAP strategy maps the destination as well, instead of writing to it from
+         * the source mapping
+         */
+        public Builder setMapDestination(boolean mapDestination) {
+            mMapDestination = mapDestination;
+            return this;
+        }
+
+        public long getBandwidthLimit() {
+            return mBandwidthLimit;
+        }
+
+        /**
+         * Throughput cap of the task in bytes per second, or TokenBucket.UNLIMITED. It's only the
+         * initial value, FileSystemTask.setBandwidthLimit() changes it while the task runs.
+         */
+        public Builder setBandwidthLimit(long bandwidthLimit) {
+            mBandwidthLimit = bandwidthLimit;
+            return this;
+        }
+
+        public int getScanParallelism() {
+            return mScanParallelism;
+        }
+
+        /**
+         * Number of threads counting the files and bytes to process while the task already works
+         * on them, so its totals are known early. Zero disables the scan, leaving totals to grow
+         * as the entries are reached.
+         */
+        public Builder setScanParallelism(int scanParallelism) {
+            if (scanParallelism < 0) {
+                throw new IllegalArgumentException("scanParallelism cannot be negative");
+            }
+            mScanParallelism = scanParallelism;
+            return this;
+        }
+
+        public CopyOptions create() {
+            return new CopyOptions(this);
+        }
+    }
+}
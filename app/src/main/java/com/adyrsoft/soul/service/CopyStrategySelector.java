@@ -0,0 +1,190 @@
+package com.adyrsoft.soul.service;
+
+import android.util.Log;
+
+import com.adyrsoft.soul.utils.FileUtils;
+import com.adyrsoft.soul.utils.StreamDuplicationFailedException;
+import com.adyrsoft.soul.utils.StreamDuplicator;
+import com.adyrsoft.soul.utils.StreamWriteFailureException;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Picks the copy strategy of each file for the AUTO strategy. The rates of the strategies are
+ * measured once per pair of source and destination volumes, by copying the first chunks of a big
+ * file with each of them in turn, and remembered for the files that come after. Volumes are told
+ * apart by their device ids, so nothing is calibrated where those are unknown, before Lollipop.
+ */
+public class CopyStrategySelector {
+    private static final String TAG = CopyStrategySelector.class.getName();
+
+    // Bytes copied with each strategy while calibrating
+    public static final int CALIBRATION_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    // Left between two calibration chunks and copied once they are timed. Bigger than the kernel
+    // reads ahead, so no strategy reads data prefetched while timing the one before.
+    public static final int CALIBRATION_GAP_SIZE = 4 * 1024 * 1024;
+
+    // Only files at least this big are used to calibrate, so the calibration is a small part of them
+    public static final long CALIBRATION_MIN_LENGTH = 64 * 1024 * 1024;
+
+    // Below this size, mapping a file costs more than it saves
+    public static final long MMAP_MIN_LENGTH = 1024 * 1024;
+
+    static final CopyOptions.CopyStrategy[] CALIBRATED_STRATEGIES = {
+            CopyOptions.CopyStrategy.STREAM,
+            CopyOptions.CopyStrategy.TRANSFER,
+            CopyOptions.CopyStrategy.MMAP
+    };
+
+    /**
+     * Rates measured for a pair of volumes, in bytes per second
+     */
+    public static class Calibration {
+        private final Map<CopyOptions.CopyStrategy, Long> mRates = new HashMap<>();
+
+        void setRate(CopyOptions.CopyStrategy strategy, long bytesPerSecond) {
+            mRates.put(strategy, bytesPerSecond);
+        }
+
+        public long getRate(CopyOptions.CopyStrategy strategy) {
+            Long rate = mRates.get(strategy);
+            return rate != null ? rate : 0;
+        }
+
+        /**
+         * @return the fastest strategy for a file of the given length
+         */
+        public CopyOptions.CopyStrategy getBest(long length) {
+            CopyOptions.CopyStrategy best = CopyOptions.CopyStrategy.TRANSFER;
+            for (CopyOptions.CopyStrategy strategy : CALIBRATED_STRATEGIES) {
+                if (strategy == CopyOptions.CopyStrategy.MMAP && length < MMAP_MIN_LENGTH) {
+                    continue;
+                }
+                if (getRate(strategy) > getRate(best)) {
+                    best = strategy;
+                }
+            }
+            return best;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (CopyOptions.CopyStrategy strategy : CALIBRATED_STRATEGIES) {
+                if (sb.length() > 0) {
+                    sb.append(", ");
+                }
+                sb.append(strategy).append('=').append(getRate(strategy) / 1024).append("KB/s");
+            }
+            return sb.toString();
+        }
+    }
+
+    private final ConcurrentHashMap<String, Calibration> mCalibrations = new ConcurrentHashMap<>();
+
+    /**
+     * @return the strategy for copying src into dst, or null if dst should be used to calibrate
+     *         the strategies first
+     */
+    public CopyOptions.CopyStrategy select(File src, File dst, long length) {
+        long srcDevice = FileUtils.getDeviceId(src);
+        long dstDevice = FileUtils.getDeviceId(dst);
+        Calibration calibration = mCalibrations.get(keyFor(srcDevice, dstDevice));
+        if (calibration != null) {
+            return calibration.getBest(length);
+        }
+
+        // Unknown devices would share one calibration between every pair of volumes
+        if (length >= CALIBRATION_MIN_LENGTH && srcDevice != -1 && dstDevice != -1) {
+            return null;
+        }
+
+        // Nothing measured yet, the kernel path is the cheapest guess
+        return CopyOptions.CopyStrategy.TRANSFER;
+    }
+
+    /**
+     * Copies a CALIBRATION_CHUNK_SIZE chunk from the start of src into dst with each strategy in
+     * turn, timing until the chunk is synced to storage. Chunks are CALIBRATION_GAP_SIZE apart, so
+     * none of them is read from the page cache, and the gaps are copied with the fastest strategy
+     * afterwards. The measured rates are remembered for the volumes of srcEntry and dstEntry.
+     * @return the number of bytes copied, all of them from the start of src
+     */
+    long calibrate(File srcEntry, File dstEntry, StreamDuplicator duplicator, FileChannel src, FileChannel dst, FileDescriptor dstFd, int mmapWindowSize, StreamDuplicator.OnDuplicationProgressListener listener) throws StreamDuplicationFailedException {
+        Calibration calibration = new Calibration();
+        long position = 0;
+
+        for (CopyOptions.CopyStrategy strategy : CALIBRATED_STRATEGIES) {
+            if (position > 0) {
+                position += CALIBRATION_GAP_SIZE;
+            }
+
+            long start = System.nanoTime();
+            copy(strategy, duplicator, src, dst, position, CALIBRATION_CHUNK_SIZE, mmapWindowSize, listener);
+            // Timed until on storage, otherwise the strategies would only be compared filling the page cache
+            try {
+                FileUtils.dataSync(dstFd);
+            } catch (IOException e) {
+                throw new StreamDuplicationFailedException(new StreamWriteFailureException(dst, e));
+            }
+            long elapsed = Math.max(1, System.nanoTime() - start);
+
+            calibration.setRate(strategy, CALIBRATION_CHUNK_SIZE * 1000000000L / elapsed);
+            position += CALIBRATION_CHUNK_SIZE;
+        }
+
+        // Files calibrating are at least CALIBRATION_MIN_LENGTH long
+        CopyOptions.CopyStrategy best = calibration.getBest(CALIBRATION_MIN_LENGTH);
+        for (int i = 1; i < CALIBRATED_STRATEGIES.length; i++) {
+            long gap = i * (long) CALIBRATION_CHUNK_SIZE + (i - 1) * (long) CALIBRATION_GAP_SIZE;
+            copy(best, duplicator, src, dst, gap, CALIBRATION_GAP_SIZE, mmapWindowSize, listener);
+        }
+
+        String key = keyFor(FileUtils.getDeviceId(srcEntry), FileUtils.getDeviceId(dstEntry));
+        mCalibrations.put(key, calibration);
+        Log.d(TAG, "Calibrated " + key + ": " + calibration);
+
+        return position;
+    }
+
+    /**
+     * Copies count bytes starting at position from src into the same position of dst with the
+     * given strategy
+     */
+    static void copy(CopyOptions.CopyStrategy strategy, StreamDuplicator duplicator, FileChannel src, FileChannel dst, long position, long count, int mmapWindowSize, StreamDuplicator.OnDuplicationProgressListener listener) throws StreamDuplicationFailedException {
+        switch (strategy) {
+            case MMAP:
+                duplicator.mapRange(src, dst, position, count, mmapWindowSize, false, listener);
+                break;
+            case TRANSFER:
+                duplicator.transferRange(src, dst, position, count, listener);
+                break;
+            default:
+                duplicator.copyRange(src, dst, position, count, listener);
+                break;
+        }
+    }
+
+    /**
+     * @return the rates measured so far, keyed by source and destination device ids
+     */
+    public Map<String, Calibration> getCalibrations() {
+        return new HashMap<>(mCalibrations);
+    }
+
+    @Override
+    public String toString() {
+        return mCalibrations.toString();
+    }
+
+    private static String keyFor(long srcDevice, long dstDevice) {
+        return srcDevice + "->" + dstDevice;
+    }
+}
@@ -9,5 +9,6 @@ public enum FileOperation {
     RENAME,
     REMOVE,
     CREATE_FOLDER,
-    QUERY
+    QUERY,
+    SYNC
 }
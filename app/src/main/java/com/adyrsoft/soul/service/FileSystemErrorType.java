@@ -15,5 +15,6 @@ public enum FileSystemErrorType {
     READ_ERROR,
     WRITE_ERROR,
     UNKNOWN,
-    AUTHENTICATION_ERROR
+    AUTHENTICATION_ERROR,
+    CHECKSUM_MISMATCH
 }
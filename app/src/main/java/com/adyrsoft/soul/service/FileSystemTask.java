@@ -5,10 +5,15 @@ import android.os.Bundle;
 import android.os.Handler;
 
 import com.adyrsoft.soul.utils.StreamDuplicator;
+import com.adyrsoft.soul.utils.TokenBucket;
+import com.adyrsoft.soul.utils.TraceRecorder;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Object that represents a batch of file operations of the same kind.
@@ -22,29 +27,65 @@ public abstract class FileSystemTask implements Runnable {
         FINISHED
     }
 
+    // Categories of the trace events recorded by tasks
+    static final String TRACE_TASK = "task";
+    static final String TRACE_FILE = "file";
+    static final String TRACE_IO = "io";
+
     private FileOperation mOp;
     private Uri mSrcWD;
     private List<Uri> mSrcs;
     private Uri mDst;
+    private List<Uri> mDsts;
     private TaskListener mListener;
     private Future mFuture;
     private StreamDuplicator mStreamDuplicator;
+    private CopyOptions mCopyOptions;
     private volatile int mTotalFiles;
-    private volatile int mProcessedFiles;
-    private volatile int mProcessedBytes;
-    private volatile int mTotalBytes;
-    private Uri mSource; // Current item source
-    private Uri mDest; // Current item output destination
+    private final AtomicInteger mProcessedFiles = new AtomicInteger();
+    private final AtomicLong mProcessedBytes = new AtomicLong();
+    private final AtomicLong mDeltaBytes = new AtomicLong();
+    private final AtomicLong mSavedBytes = new AtomicLong();
+    private volatile long mTotalBytes;
+    private volatile Uri mSource; // Current item source
+    private volatile Uri mDest; // Current item output destination
     private volatile TaskResult mTaskResult;
     private volatile State mState;
     private Object mOutput;
+    private final TaskMetrics mMetrics = new TaskMetrics();
+    private final TokenBucket mBandwidthLimiter = new TokenBucket();
+    private final ThroughputMeter mThroughputMeter = new ThroughputMeter();
+    // Off unless the service hands its own, which allocates nothing until enabled
+    private volatile TraceRecorder mTraceRecorder = new TraceRecorder();
+    private long mStartNanos;
 
     public FileSystemTask(FileOperation op, Uri srcWD, List<Uri> srcs, Uri dst, TaskListener listener) {
-        init(op, srcWD, srcs, dst, listener, null);
+        init(op, srcWD, srcs, dst, listener, null, null);
     }
 
     FileSystemTask(FileOperation op, Uri srcWD, List<Uri> srcs, Uri dst, TaskListener listener, StreamDuplicator duplicator) {
-        init(op, srcWD, srcs, dst, listener, duplicator);
+        init(op, srcWD, srcs, dst, listener, duplicator, null);
+    }
+
+    FileSystemTask(FileOperation op, Uri srcWD, List<Uri> srcs, Uri dst, TaskListener listener, StreamDuplicator duplicator, CopyOptions copyOptions) {
+        init(op, srcWD, srcs, dst, listener, duplicator, copyOptions);
+    }
+
+    /**
+     * Task with several destinations, only supported by COPY. The first of them is the one
+     * getDst() returns.
+     */
+    FileSystemTask(FileOperation op, Uri srcWD, List<Uri> srcs, List<Uri> dsts, TaskListener listener, StreamDuplicator duplicator, CopyOptions copyOptions) {
+        if (dsts == null || dsts.isEmpty()) {
+            throw new NullPointerException("dsts cannot be null or empty");
+        }
+
+        if (op != FileOperation.COPY && dsts.size() > 1) {
+            throw new IllegalArgumentException("Only copies can have more than one destination");
+        }
+
+        init(op, srcWD, srcs, dsts.get(0), listener, duplicator, copyOptions);
+        mDsts = new ArrayList<>(dsts);
     }
 
     public Uri getSrcWD() {
@@ -59,7 +100,15 @@ public abstract class FileSystemTask implements Runnable {
         return mDst;
     }
 
-    private void init(FileOperation op, Uri srcWD, List<Uri> srcs, Uri dst, TaskListener listener, StreamDuplicator duplicator) {
+    /**
+     * @return every destination of the task, which is just getDst() unless the task was created
+     *         with several of them
+     */
+    public List<Uri> getDsts() {
+        return new ArrayList<>(mDsts);
+    }
+
+    private void init(FileOperation op, Uri srcWD, List<Uri> srcs, Uri dst, TaskListener listener, StreamDuplicator duplicator, CopyOptions copyOptions) {
         if (op == null) {
             throw new NullPointerException("op cannot be null");
         }
@@ -70,6 +119,7 @@ public abstract class FileSystemTask implements Runnable {
 
         if ((op == FileOperation.COPY ||
                 op == FileOperation.MOVE ||
+                op == FileOperation.SYNC ||
                 op == FileOperation.CREATE_FOLDER) &&
                 dst == null) {
             throw new NullPointerException("dst cannot be null for chosen operation");
@@ -83,23 +133,72 @@ public abstract class FileSystemTask implements Runnable {
             duplicator = new StreamDuplicator();
         }
 
+        if (copyOptions == null) {
+            copyOptions = new CopyOptions.Builder().create();
+        }
+
         mOp = op;
         mSrcWD = srcWD;
         mSrcs = srcs;
         mDst = dst;
+        mDsts = dst != null ? Collections.singletonList(dst) : Collections.<Uri>emptyList();
         mListener = listener;
         mStreamDuplicator = duplicator;
+        mCopyOptions = copyOptions;
         mState = State.PENDING;
+
+        mBandwidthLimiter.setRate(copyOptions.getBandwidthLimit());
+        mStreamDuplicator.setRateLimiters(mBandwidthLimiter);
     }
 
     public StreamDuplicator getStreamDuplicator() {
         return mStreamDuplicator;
     }
 
+    public CopyOptions getCopyOptions() {
+        return mCopyOptions;
+    }
+
+    public TaskMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    public long getBandwidthLimit() {
+        return mBandwidthLimiter.getRate();
+    }
+
+    /**
+     * Caps the throughput of the task, taking effect right away if it's running
+     * @param bytesPerSecond maximum throughput, or TokenBucket.UNLIMITED
+     */
+    public void setBandwidthLimit(long bytesPerSecond) {
+        mBandwidthLimiter.setRate(bytesPerSecond);
+    }
+
+    TokenBucket getBandwidthLimiter() {
+        return mBandwidthLimiter;
+    }
+
+    TraceRecorder getTraceRecorder() {
+        return mTraceRecorder;
+    }
+
+    void setTraceRecorder(TraceRecorder traceRecorder) {
+        mTraceRecorder = traceRecorder;
+    }
+
+    // Tells the tasks apart in a trace
+    String getTraceName() {
+        return mOp + " task " + Integer.toHexString(System.identityHashCode(this));
+    }
+
     @Override
     public void run() {
         try {
             mState = State.WORKING;
+            mStartNanos = System.nanoTime();
+            mMetrics.onStarted(mStartNanos);
+            mTraceRecorder.instant(TRACE_TASK, "started", "task", getTraceName());
             switch (mOp) {
                 case COPY:
                     copy(mSrcWD, mSrcs, mDst);
@@ -119,6 +218,9 @@ public abstract class FileSystemTask implements Runnable {
                 case QUERY:
                     query(mSrcWD);
                     break;
+                case SYNC:
+                    sync(mSrcWD, mSrcs, mDst);
+                    break;
             }
 
             if (mTaskResult == null) { // Default task result if op method didn't set one
@@ -144,24 +246,40 @@ public abstract class FileSystemTask implements Runnable {
 
     public State getState() { return mState; }
 
-    protected void onProgressUpdate() {
-        final ProgressInfo info = new ProgressInfo.Builder()
+    /**
+     * Takes a snapshot of the progress of the task. Workers only bump counters as they go, and
+     * whoever reports the progress pulls it from here at its own pace. Each snapshot also feeds the
+     * throughput meter.
+     */
+    public ProgressInfo getProgressInfo() {
+        long processedBytes = getProcessedBytes();
+        int processedFiles = getProcessedFiles();
+        long totalBytes = getTotalBytes();
+        int totalFiles = getTotalFiles();
+
+        mThroughputMeter.sample(System.nanoTime(), processedBytes, processedFiles);
+        long remainingBytes = totalBytes > 0 ? Math.max(0, totalBytes - processedBytes) : -1;
+        long etaMillis = mThroughputMeter.getEtaMillis(remainingBytes, Math.max(0, totalFiles - processedFiles));
+
+        return new ProgressInfo.Builder()
                 .setSource(getSource())
                 .setDest(getDest())
-                .setProcessedBytes(getProcessedBytes())
-                .setProcessedFiles(getProcessedFiles())
-                .setTotalFiles(getTotalFiles())
-                .setTotalBytes(getTotalBytes())
+                .setProcessedBytes(processedBytes)
+                .setProcessedFiles(processedFiles)
+                .setTotalFiles(totalFiles)
+                .setTotalBytes(totalBytes)
+                .setDeltaBytes(getDeltaBytes())
+                .setSavedBytes(getSavedBytes())
+                .setBytesPerSecond(mThroughputMeter.getBytesPerSecond())
+                .setFilesPerSecond(mThroughputMeter.getFilesPerSecond())
+                .setEtaMillis(etaMillis)
                 .create();
-
-        final FileSystemTask thisTask = this;
-        if (mListener != null) {
-            mListener.onProgressUpdate(thisTask, info);
-        }
     }
 
     protected void onTaskFinished() {
         mState = State.FINISHED;
+        mMetrics.onFinished(System.nanoTime());
+        mTraceRecorder.complete(TRACE_TASK, getTraceName(), mStartNanos, "result", mTaskResult);
 
         if (mListener != null) {
             mListener.onTaskFinished(this, mTaskResult, mOutput);
@@ -179,10 +297,15 @@ public abstract class FileSystemTask implements Runnable {
                 .setFeedbackProvider(feedbackProvider)
                 .create();
 
+        long start = System.nanoTime();
         if (mListener != null) {
             mListener.onError(thisTask, errorInfo);
         }
-        return feedbackProvider.fetchFeedback();
+        try {
+            return feedbackProvider.fetchFeedback();
+        } finally {
+            mTraceRecorder.complete(TRACE_TASK, "error wait", start, "error", errorType);
+        }
     }
 
     protected abstract void copy(Uri srcWD, List<Uri> srcs, Uri dst) throws InterruptedException;
@@ -191,38 +314,52 @@ public abstract class FileSystemTask implements Runnable {
     protected abstract void remove(Uri srcWD, List<Uri> srcs) throws InterruptedException;
     protected abstract void createFolder(Uri folderUri) throws InterruptedException;
     protected abstract void query(Uri srcWD) throws InterruptedException;
+    protected abstract void sync(Uri srcWD, List<Uri> srcs, Uri dst) throws InterruptedException;
 
     protected int getTotalFiles() { return mTotalFiles; }
 
     protected void setTotalFiles(int totalFiles) { mTotalFiles = totalFiles; }
 
     protected int getProcessedFiles() {
-        return mProcessedFiles;
+        return mProcessedFiles.get();
     }
 
     protected void setProcessedFiles(int processedFiles) {
-        mProcessedFiles = processedFiles;
+        mProcessedFiles.set(processedFiles);
     }
 
-    protected void incrementProcessedBytes(int processedBytes) {
-        mProcessedBytes += processedBytes;
+    // Counters can be incremented from several worker threads at once
+    protected void incrementProcessedBytes(long processedBytes) {
+        mProcessedBytes.addAndGet(processedBytes);
     }
 
     protected void incrementProcessedFiles(int processedFiles) {
-        mProcessedFiles += processedFiles;
+        mProcessedFiles.addAndGet(processedFiles);
     }
 
-    protected int getProcessedBytes() { return mProcessedBytes; }
+    protected long getProcessedBytes() { return mProcessedBytes.get(); }
+
+    protected void setProcessedBytes(long processedBytes) {
+        mProcessedBytes.set(processedBytes);
+    }
 
-    protected void setProcessedBytes(int processedBytes) {
-        mProcessedBytes = processedBytes;
+    protected void incrementDeltaBytes(long deltaBytes) {
+        mDeltaBytes.addAndGet(deltaBytes);
     }
 
-    protected int getTotalBytes() {
+    protected long getDeltaBytes() { return mDeltaBytes.get(); }
+
+    protected void incrementSavedBytes(long savedBytes) {
+        mSavedBytes.addAndGet(savedBytes);
+    }
+
+    protected long getSavedBytes() { return mSavedBytes.get(); }
+
+    protected long getTotalBytes() {
         return mTotalBytes;
     }
 
-    protected void setTotalBytes(int totalBytes) {
+    protected void setTotalBytes(long totalBytes) {
         mTotalBytes = totalBytes;
     }
 
@@ -236,4 +373,10 @@ public abstract class FileSystemTask implements Runnable {
 
     protected void setDest(Uri dest) { mDest = dest; }
     protected void setOutput(Object output) { mOutput = output; }
+
+    /**
+     * Result of the task, like the entries of a query or the CopyManifest of a verified copy.
+     * Only meaningful once the task is finished.
+     */
+    public Object getOutput() { return mOutput; }
 }
@@ -6,15 +6,30 @@ import android.net.Uri;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Process;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
 import com.adyrsoft.soul.data.Entry;
-
+import com.adyrsoft.soul.utils.AdaptiveChunkSizer;
+import com.adyrsoft.soul.utils.BufferPool;
+import com.adyrsoft.soul.utils.FileUtils;
+import com.adyrsoft.soul.utils.PipelinedStreamDuplicator;
+import com.adyrsoft.soul.utils.StreamDuplicator;
+import com.adyrsoft.soul.utils.TokenBucket;
+import com.adyrsoft.soul.utils.TraceRecorder;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -39,6 +54,8 @@ public class FileTransferService extends Service implements TaskListener {
     }
 
     private static final String TAG = FileTransferService.class.getSimpleName();
+    private static final long BUFFER_POOL_MAX_BYTES = 8 * 1024 * 1024;
+    private static final String JOURNAL_DIR_NAME = "copy_journals";
     private final IBinder mBinder = new FileTransferBinder();
 
     private boolean mReportingErrors;
@@ -49,7 +66,15 @@ public class FileTransferService extends Service implements TaskListener {
     private HashMap<FileSystemTask, Object> mOpSpecificListeners = new HashMap<>(); // This list of listeners want to know of a particular task completion and result
     private HashMap<FileSystemTask, ProgressInfo> mTaskStatusCache = new HashMap<>();
     private LinkedList<ErrorInfo> mTaskErrorQueue = new LinkedList<>();
+    // Read from dump(), which runs on a binder thread
+    private final Set<FileSystemTask> mActiveTasks = Collections.newSetFromMap(new ConcurrentHashMap<FileSystemTask, Boolean>());
+    private final IoStats mFinishedIoStats = new IoStats();
+    private final TraceRecorder mTraceRecorder = new TraceRecorder();
     private ProgressNotifier mProgressNotifier;
+    private File mJournalDir;
+    private CopyStrategySelector mStrategySelector = new CopyStrategySelector();
+    private final TokenBucket mGlobalBandwidthLimiter = new TokenBucket();
+    private BufferPool mBufferPool = new BufferPool(AdaptiveChunkSizer.MIN_CHUNK_SIZE, AdaptiveChunkSizer.MAX_CHUNK_SIZE, BUFFER_POOL_MAX_BYTES);
 
     private TaskListener mTaskEventHub = new TaskListener() {
         @Override
@@ -87,6 +112,10 @@ public class FileTransferService extends Service implements TaskListener {
     @Override
     public void onTaskFinished(FileSystemTask task, TaskResult result, Object output) {
         mTaskStatusCache.remove(task);
+        Log.d(TAG, task.getFileOperation() + " task " + result + ": " + task.getMetrics());
+        mFinishedIoStats.add(task.getMetrics().getIoStats());
+        mActiveTasks.remove(task);
+        mTraceRecorder.instant(FileSystemTask.TRACE_TASK, "finished", "task", task.getTraceName());
 
         handleSpecificCallbacks(task, result, output);
 
@@ -115,6 +144,8 @@ public class FileTransferService extends Service implements TaskListener {
                 break;
             case CREATE_FOLDER:
                 break;
+            case SYNC:
+                break;
             case QUERY:
                 QueryResultCallback callback = (QueryResultCallback) specificListener;
                 switch (result) {
@@ -168,12 +199,15 @@ public class FileTransferService extends Service implements TaskListener {
         mProgressNotifier = new ProgressNotifier(mHandler, this);
         mProgressNotifier.start();
         mExecutor = Executors.newCachedThreadPool();
+        mJournalDir = new File(getFilesDir(), JOURNAL_DIR_NAME);
     }
 
     @Override
     public void onDestroy() {
         try {
             Log.d(TAG, "Service shutting down");
+            Log.d(TAG, "Buffer pool usage: " + mBufferPool);
+            Log.d(TAG, "Copy strategy calibrations: " + mStrategySelector);
             mExecutor.shutdownNow();
             mProgressNotifier.stop();
             mExecutor.awaitTermination(2, TimeUnit.SECONDS);
@@ -183,14 +217,102 @@ public class FileTransferService extends Service implements TaskListener {
         }
     }
 
+    /**
+     * Prints the I/O latency histograms of every task, running or finished, and of each running
+     * task on its own. See: adb shell dumpsys activity service FileTransferService
+     *
+     * With "trace start", "trace stop" or "trace clear" as arguments, controls the trace recorder
+     * instead. With just "trace", prints the recorded trace as JSON for chrome://tracing.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (args != null && args.length > 0 && args[0].equals("trace")) {
+            dumpTrace(writer, args.length > 1 ? args[1] : null);
+            return;
+        }
+
+        writer.println("Tracing: " + (mTraceRecorder.isEnabled() ? "on" : "off"));
+        writer.println("I/O of all tasks:");
+        getIoStats().dump(writer, "  ");
+
+        for (FileSystemTask task : mActiveTasks) {
+            writer.println();
+            writer.println(task.getFileOperation() + " task, " + task.getState() + ":");
+            writer.println("  " + task.getMetrics());
+            task.getMetrics().getIoStats().dump(writer, "  ");
+        }
+
+        writer.println();
+        writer.println("Buffer pool usage: " + mBufferPool);
+        writer.println("Copy strategy calibrations: " + mStrategySelector);
+    }
+
+    private void dumpTrace(PrintWriter writer, String command) {
+        if ("start".equals(command)) {
+            mTraceRecorder.setEnabled(true);
+            writer.println("Tracing started");
+        } else if ("stop".equals(command)) {
+            mTraceRecorder.setEnabled(false);
+            writer.println("Tracing stopped");
+        } else if ("clear".equals(command)) {
+            mTraceRecorder.clear();
+            writer.println("Trace cleared");
+        } else if (command == null) {
+            try {
+                mTraceRecorder.writeJson(writer, Process.myPid());
+            } catch (IOException e) {
+                // PrintWriter doesn't throw
+            }
+            writer.println();
+        } else {
+            writer.println("Unknown trace command: " + command);
+        }
+    }
+
     public FileSystemTask copy(Uri srcWD, List<Uri> srcs, Uri dest) {
-        LocalFileSystemTask task = new LocalFileSystemTask(FileOperation.COPY, srcWD, new ArrayList<>(srcs), dest, mTaskEventHub);
+        return copy(srcWD, srcs, dest, new CopyOptions.Builder().create());
+    }
+
+    public FileSystemTask copy(Uri srcWD, List<Uri> srcs, Uri dest, CopyOptions options) {
+        LocalFileSystemTask task = new LocalFileSystemTask(FileOperation.COPY, srcWD, new ArrayList<>(srcs), dest, mTaskEventHub, newStreamDuplicator(srcWD, dest), options);
+        task.setJournalDirectory(mJournalDir);
+        task.setStrategySelector(mStrategySelector);
+        addToQueue(task);
+        return task;
+    }
+
+    /**
+     * Copies srcs into every one of dests, reading each source file only once
+     */
+    public FileSystemTask copy(Uri srcWD, List<Uri> srcs, List<Uri> dests, CopyOptions options) {
+        // Writes go to several volumes at once, so no single pair of them decides the duplicator
+        LocalFileSystemTask task = new LocalFileSystemTask(FileOperation.COPY, srcWD, new ArrayList<>(srcs), new ArrayList<>(dests), mTaskEventHub, new StreamDuplicator(mBufferPool), options);
+        task.setStrategySelector(mStrategySelector);
+        addToQueue(task);
+        return task;
+    }
+
+    /**
+     * Like copy, but only transfers the files that are new or changed in the destination
+     */
+    public FileSystemTask sync(Uri srcWD, List<Uri> srcs, Uri dest, CopyOptions options) {
+        LocalFileSystemTask task = new LocalFileSystemTask(FileOperation.SYNC, srcWD, new ArrayList<>(srcs), dest, mTaskEventHub, newStreamDuplicator(srcWD, dest), options);
+        task.setStrategySelector(mStrategySelector);
         addToQueue(task);
         return task;
     }
 
     public FileSystemTask move(Uri srcWD, List<Uri> srcs, Uri dest) {
-        LocalFileSystemTask task = new LocalFileSystemTask(FileOperation.MOVE, srcWD, new ArrayList<>(srcs), dest, mTaskEventHub);
+        return move(srcWD, srcs, dest, new CopyOptions.Builder().create());
+    }
+
+    /**
+     * @param options used by the entries that have to be copied, because they are on another
+     *                volume than dest
+     */
+    public FileSystemTask move(Uri srcWD, List<Uri> srcs, Uri dest, CopyOptions options) {
+        LocalFileSystemTask task = new LocalFileSystemTask(FileOperation.MOVE, srcWD, new ArrayList<>(srcs), dest, mTaskEventHub, newStreamDuplicator(srcWD, dest), options);
+        task.setStrategySelector(mStrategySelector);
         addToQueue(task);
         return task;
     }
@@ -225,8 +347,59 @@ public class FileTransferService extends Service implements TaskListener {
         return task;
     }
 
+    /**
+     * Pool of I/O buffers shared by the tasks of this service. Its counters tell how well buffers
+     * are being reused.
+     */
+    public BufferPool getBufferPool() {
+        return mBufferPool;
+    }
+
+    /**
+     * @return I/O latency histograms of every task run by this service so far, the ones still
+     *         running included. Each task has its own in its TaskMetrics.
+     */
+    public IoStats getIoStats() {
+        IoStats stats = new IoStats();
+        stats.add(mFinishedIoStats);
+        for (FileSystemTask task : mActiveTasks) {
+            stats.add(task.getMetrics().getIoStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Timeline of the tasks of this service, their files and I/O calls. It's off until enabled,
+     * and can be turned on and off at any time, affecting running tasks too.
+     */
+    public TraceRecorder getTraceRecorder() {
+        return mTraceRecorder;
+    }
+
+    public CopyStrategySelector getStrategySelector() {
+        return mStrategySelector;
+    }
+
+    public long getGlobalBandwidthLimit() {
+        return mGlobalBandwidthLimiter.getRate();
+    }
+
+    /**
+     * Caps the combined throughput of every task, on top of their own limits. Running tasks are
+     * affected right away.
+     * @param bytesPerSecond maximum throughput, or TokenBucket.UNLIMITED
+     */
+    public void setGlobalBandwidthLimit(long bytesPerSecond) {
+        mGlobalBandwidthLimiter.setRate(bytesPerSecond);
+    }
+
+    /**
+     * Listeners are expected to only be added while their UI is visible, progress is reported less
+     * often while there are none.
+     */
     public void addTaskProgressListener(@NonNull TaskProgressListener listener) {
         mClientListeners.add(listener);
+        mProgressNotifier.setSubscribers(mClientListeners.size());
         onSubscription(listener);
     }
 
@@ -243,14 +416,31 @@ public class FileTransferService extends Service implements TaskListener {
 
     public void removeTaskProgressListener(@NonNull TaskProgressListener listener) {
         mClientListeners.remove(listener);
+        mProgressNotifier.setSubscribers(mClientListeners.size());
     }
 
     private void addToQueue(LocalFileSystemTask task) {
         mTaskStatusCache.put(task, new ProgressInfo.Builder().create());
+        mActiveTasks.add(task);
+        task.setTraceRecorder(mTraceRecorder);
+        mTraceRecorder.instant(FileSystemTask.TRACE_TASK, "queued", "task", task.getTraceName());
+        mProgressNotifier.track(task);
+        task.getStreamDuplicator().setRateLimiters(task.getBandwidthLimiter(), mGlobalBandwidthLimiter);
         Future future = mExecutor.submit(task);
         task.setTaskFuture(future);
     }
 
+    // Copies between different devices read and write in parallel, so neither device sits idle
+    private StreamDuplicator newStreamDuplicator(Uri src, Uri dest) {
+        long srcDevice = FileUtils.getDeviceId(new File(src.getPath()));
+        long destDevice = FileUtils.getDeviceId(new File(dest.getPath()));
+
+        if (srcDevice != -1 && destDevice != -1 && srcDevice != destDevice) {
+            return new PipelinedStreamDuplicator(mBufferPool, mExecutor);
+        }
+        return new StreamDuplicator(mBufferPool);
+    }
+
     private void onSubscription(TaskProgressListener listener) {
         reportAllTasks(listener);
     }
@@ -0,0 +1,127 @@
+package com.adyrsoft.soul.service;
+
+import com.adyrsoft.soul.utils.Histogram;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Latency of the file system calls a task makes, per kind of call, and the bytes moved by each
+ * call that moves data. Histograms are only allocated for the kinds of call the task makes, so
+ * the many tasks that never copy anything stay cheap. Safe to update from several threads.
+ */
+public class IoStats {
+    public enum Operation {
+        OPEN,
+        READ,
+        WRITE,
+        // FileChannel.transferTo, which reads and writes in the same call
+        TRANSFER,
+        MKDIR,
+        RENAME,
+        DELETE,
+        SYNC
+    }
+
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    private final AtomicReferenceArray<Histogram> mLatencies = new AtomicReferenceArray<>(OPERATIONS.length);
+    private final AtomicReferenceArray<Histogram> mSizes = new AtomicReferenceArray<>(OPERATIONS.length);
+
+    void record(Operation operation, long nanos) {
+        obtain(mLatencies, operation).record(nanos);
+    }
+
+    void record(Operation operation, long nanos, long bytes) {
+        obtain(mLatencies, operation).record(nanos);
+        obtain(mSizes, operation).record(bytes);
+    }
+
+    /**
+     * @return latencies of the given kind of call in nanoseconds, empty if it was never made
+     */
+    public Histogram getLatencies(Operation operation) {
+        Histogram latencies = mLatencies.get(operation.ordinal());
+        return latencies != null ? latencies : new Histogram();
+    }
+
+    /**
+     * @return bytes moved by each call of the given kind, only recorded for READ, WRITE and
+     *         TRANSFER
+     */
+    public Histogram getSizes(Operation operation) {
+        Histogram sizes = mSizes.get(operation.ordinal());
+        return sizes != null ? sizes : new Histogram();
+    }
+
+    /**
+     * Adds everything recorded by other to these stats
+     */
+    public void add(IoStats other) {
+        for (Operation operation : OPERATIONS) {
+            Histogram latencies = other.mLatencies.get(operation.ordinal());
+            if (latencies != null) {
+                obtain(mLatencies, operation).add(latencies);
+            }
+
+            Histogram sizes = other.mSizes.get(operation.ordinal());
+            if (sizes != null) {
+                obtain(mSizes, operation).add(sizes);
+            }
+        }
+    }
+
+    /**
+     * Prints a line per kind of call made, with its latency percentiles in microseconds and the
+     * percentiles of the bytes per call when it moves data
+     */
+    public void dump(PrintWriter writer, String prefix) {
+        boolean empty = true;
+
+        for (Operation operation : OPERATIONS) {
+            Histogram latencies = mLatencies.get(operation.ordinal());
+            if (latencies == null || latencies.getCount() == 0) {
+                continue;
+            }
+            empty = false;
+
+            writer.print(prefix);
+            writer.print(String.format(Locale.US, "%-8s count=%d total=%dms", operation.name().toLowerCase(Locale.US), latencies.getCount(), TimeUnit.NANOSECONDS.toMillis(latencies.getSum())));
+            writer.print(" latency(us): ");
+            writer.print(formatPercentiles(latencies, TimeUnit.MICROSECONDS.toNanos(1)));
+
+            Histogram sizes = mSizes.get(operation.ordinal());
+            if (sizes != null && sizes.getCount() > 0) {
+                writer.print(" bytes/call: ");
+                writer.print(formatPercentiles(sizes, 1));
+            }
+            writer.println();
+        }
+
+        if (empty) {
+            writer.print(prefix);
+            writer.println("no I/O recorded");
+        }
+    }
+
+    private static String formatPercentiles(Histogram histogram, long unit) {
+        return String.format(Locale.US, "mean=%d p50=%d p90=%d p99=%d max=%d",
+                histogram.getMean() / unit,
+                histogram.getValueAtPercentile(50) / unit,
+                histogram.getValueAtPercentile(90) / unit,
+                histogram.getValueAtPercentile(99) / unit,
+                histogram.getMax() / unit);
+    }
+
+    private static Histogram obtain(AtomicReferenceArray<Histogram> histograms, Operation operation) {
+        int index = operation.ordinal();
+        Histogram histogram = histograms.get(index);
+        if (histogram == null) {
+            histograms.compareAndSet(index, null, new Histogram());
+            histogram = histograms.get(index);
+        }
+        return histogram;
+    }
+}
@@ -3,66 +3,379 @@ package com.adyrsoft.soul.service;
 import android.net.Uri;
 import android.support.annotation.NonNull;
 
+import com.adyrsoft.soul.utils.ContentDigest;
+import com.adyrsoft.soul.utils.DeltaDuplicator;
 import com.adyrsoft.soul.utils.FileUtils;
 import com.adyrsoft.soul.utils.StreamDuplicationFailedException;
 import com.adyrsoft.soul.utils.StreamDuplicator;
+import com.adyrsoft.soul.utils.StreamReadFailureException;
+import com.adyrsoft.soul.utils.StreamWriteFailureException;
+import com.adyrsoft.soul.utils.ThreadUtils;
+import com.adyrsoft.soul.utils.TraceRecorder;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Duplicates local file system entries
  */
 public class LocalFSEntryDuplicator {
+    private static final int VERIFY_BUFFER_SIZE = 256 * 1024;
+
+    // Files at least this big have their written data flushed as the copy goes when page cache
+    // hygiene is enabled, every WRITE_BEHIND_INTERVAL bytes
+    private static final long WRITE_BEHIND_THRESHOLD = 32 * 1024 * 1024;
+    private static final long WRITE_BEHIND_INTERVAL = 8 * 1024 * 1024;
+
     private StreamDuplicator mStreamDuplicator;
     private StreamDuplicator.OnDuplicationProgressListener mListener;
+    private CopyOptions mOptions;
+    private TaskMetrics mMetrics;
+    private CopyStrategySelector mStrategySelector;
+    private TraceRecorder mTraceRecorder = new TraceRecorder();
+    // Writeback errors a write-behind flush got for each file being copied, raised by syncFile
+    private final Map<FileDescriptor, IOException> mWriteBehindErrors = Collections.synchronizedMap(new WeakHashMap<FileDescriptor, IOException>());
 
     public LocalFSEntryDuplicator (StreamDuplicator streamDuplicator, StreamDuplicator.OnDuplicationProgressListener listener) {
+        this(streamDuplicator, listener, new CopyOptions.Builder().create());
+    }
+
+    public LocalFSEntryDuplicator (StreamDuplicator streamDuplicator, StreamDuplicator.OnDuplicationProgressListener listener, CopyOptions options) {
+        this(streamDuplicator, listener, options, new TaskMetrics(), new CopyStrategySelector());
+    }
+
+    /**
+     * @param metrics where the time spent preallocating and syncing files is accounted
+     * @param strategySelector picks the strategy of each file for the AUTO copy strategy. Sharing
+     *                         it between tasks spares them calibrating it again.
+     */
+    public LocalFSEntryDuplicator (StreamDuplicator streamDuplicator, StreamDuplicator.OnDuplicationProgressListener listener, CopyOptions options, TaskMetrics metrics, CopyStrategySelector strategySelector) {
         mStreamDuplicator = streamDuplicator;
         mListener = listener;
+        mOptions = options;
+        mMetrics = metrics;
+        mStrategySelector = strategySelector;
+    }
+
+    /**
+     * Records a span per file copied, from its opening to its closing, and one per open call
+     */
+    public void setTraceRecorder(TraceRecorder traceRecorder) {
+        mTraceRecorder = traceRecorder;
     }
 
     public void copyEntry(File srcEntry, File dstEntry, boolean overwrite) throws FileCopyFailedException, InterruptedException {
+        copyEntry(srcEntry, dstEntry, overwrite, 0, null);
+    }
+
+    /**
+     * Copies an entry, resuming a file whose first resumeOffset bytes were already copied into
+     * dstEntry by an interrupted copy. Anything in dstEntry past that offset is discarded.
+     * @param fileListener listener notified of the bytes copied for this entry only, on top of the
+     *                     listener given to the constructor. The bytes it gets always extend the
+     *                     copied prefix of the file, even when its ranges are copied at once.
+     * @return digest of the file, when the copy options ask for verification. Null otherwise.
+     */
+    public byte[] copyEntry(File srcEntry, File dstEntry, boolean overwrite, long resumeOffset, StreamDuplicator.OnDuplicationProgressListener fileListener) throws FileCopyFailedException, InterruptedException {
         if (srcEntry.isDirectory()) {
             copyDirectory(dstEntry);
+            return null;
         } else {
             File parentFolder = dstEntry.getParentFile();
 
             copyDirectory(parentFolder);
-            copyFile(srcEntry, dstEntry, overwrite);
+
+            long start = System.nanoTime();
+            try {
+                return copyFile(srcEntry, dstEntry, overwrite, resumeOffset, fileListener);
+            } finally {
+                mTraceRecorder.complete(FileSystemTask.TRACE_FILE, "copy", start, "path", srcEntry.getPath());
+            }
+        }
+    }
+
+    /**
+     * Brings dstEntry up to date with srcEntry. Big files that already exist in the destination
+     * only get the blocks that changed rewritten, everything else is copied as usual.
+     * @param deltaListener listener notified of the bytes written and skipped by a delta update
+     * @return digest of the file, when the copy options ask for verification. Null otherwise.
+     */
+    public byte[] updateEntry(File srcEntry, File dstEntry, final DeltaDuplicator.OnDeltaProgressListener deltaListener) throws FileCopyFailedException, InterruptedException {
+        if (srcEntry.isDirectory()
+                || !dstEntry.isFile()
+                || mOptions.getVerification() != CopyOptions.Verification.NONE
+                || srcEntry.length() < mOptions.getDeltaThreshold()) {
+            return copyEntry(srcEntry, dstEntry, true, 0, null);
+        }
+
+        RandomAccessFile srcFile = null;
+        RandomAccessFile dstFile = null;
+        long start = System.nanoTime();
+
+        try {
+            srcFile = OpenRandomAccessFile(srcEntry);
+            dstFile = OpenWritableRandomAccessFile(dstEntry);
+
+            DeltaDuplicator deltaDuplicator = new DeltaDuplicator(mStreamDuplicator);
+            deltaDuplicator.update(srcFile.getChannel(), dstFile.getChannel(), new DeltaDuplicator.OnDeltaProgressListener() {
+                @Override
+                public void onDeltaProgress(int deltaBytes, int savedBytes) {
+                    if (deltaListener != null) {
+                        deltaListener.onDeltaProgress(deltaBytes, savedBytes);
+                    }
+                    if (mListener != null) {
+                        mListener.onDuplicationProgress(deltaBytes + savedBytes);
+                    }
+                }
+            });
+            syncFile(descriptorOf(dstFile), dstFile.getChannel());
+        } catch (StreamDuplicationFailedException e) {
+            rethrowIfInterrupted(e);
+            throw new FileCopyFailedException(e);
+        } catch (FileNotReadable | FileNotWritable e) {
+            throw new FileCopyFailedException(e);
+        } finally {
+            FileUtils.closeSilently(srcFile);
+            FileUtils.closeSilently(dstFile);
+            mTraceRecorder.complete(FileSystemTask.TRACE_FILE, "update", start, "path", srcEntry.getPath());
+        }
+
+        return null;
+    }
+
+    /**
+     * Copies a file into several destinations at once, reading it only once. A destination that
+     * fails doesn't stop the others: its error is stored at its index in failures and whatever
+     * was written of it is deleted. Existing destinations are overwritten.
+     * @param failures array as long as dstEntries that receives the error of each failed destination
+     * @return digest of the file, when the copy options ask for verification. Null otherwise.
+     * @throws FileCopyFailedException if the source couldn't be read, which fails every destination
+     */
+    public byte[] copyFileToAll(File srcEntry, File[] dstEntries, FileCopyFailedException[] failures) throws FileCopyFailedException, InterruptedException {
+        if (!srcEntry.exists()) {
+            throw new FileCopyFailedException(new FileNotFoundException("Couldn't find file "+srcEntry.getPath()));
+        }
+
+        long length = srcEntry.length();
+        ContentDigest digest = null;
+        if (mOptions.getVerification() != CopyOptions.Verification.NONE) {
+            digest = newDigest();
+        }
+
+        FileInputStream srcStream = null;
+        FileOutputStream[] dstStreams = new FileOutputStream[dstEntries.length];
+        long start = System.nanoTime();
+
+        try {
+            srcStream = OpenFileInputStream(srcEntry);
+            InputStream source = digest != null ? digest.wrap(srcStream) : srcStream;
+
+            for (int i = 0; i < dstEntries.length; i++) {
+                try {
+                    copyDirectory(dstEntries[i].getParentFile());
+                    dstStreams[i] = OpenFileOutputStream(dstEntries[i], false);
+                    preallocate(descriptorOf(dstStreams[i]), length);
+                } catch (FileCopyFailedException e) {
+                    failures[i] = e;
+                } catch (FileNotWritable | StreamDuplicationFailedException e) {
+                    failures[i] = new FileCopyFailedException(e);
+                }
+            }
+
+            IOException[] errors = mStreamDuplicator.duplicateToAll(source, dstStreams, length, mListener);
+
+            for (int i = 0; i < dstEntries.length; i++) {
+                if (dstStreams[i] == null) {
+                    continue;
+                }
+
+                try {
+                    if (errors[i] != null) {
+                        throw new StreamDuplicationFailedException(errors[i]);
+                    }
+                    trimToPosition(dstStreams[i].getChannel());
+                    syncFile(descriptorOf(dstStreams[i]), dstStreams[i].getChannel());
+                } catch (StreamDuplicationFailedException e) {
+                    failures[i] = new FileCopyFailedException(e);
+                }
+            }
+        } catch (StreamDuplicationFailedException e) {
+            rethrowIfInterrupted(e);
+            throw new FileCopyFailedException(e);
+        } catch (FileNotReadable e) {
+            throw new FileCopyFailedException(e);
+        } finally {
+            FileUtils.closeSilently(srcStream);
+            for (int i = 0; i < dstStreams.length; i++) {
+                FileUtils.closeSilently(dstStreams[i]);
+                if (dstStreams[i] != null && failures[i] != null) {
+                    dstEntries[i].delete();
+                }
+            }
+            mTraceRecorder.complete(FileSystemTask.TRACE_FILE, "copy to all", start, "path", srcEntry.getPath());
+        }
+
+        if (digest == null) {
+            return null;
+        }
+
+        byte[] expected = digest.digest();
+        if (mOptions.getVerification() == CopyOptions.Verification.VERIFY) {
+            for (int i = 0; i < dstEntries.length; i++) {
+                if (failures[i] == null) {
+                    try {
+                        verifyFile(dstEntries[i], expected);
+                    } catch (FileCopyFailedException e) {
+                        // Deleted like the other failures, so copying it again doesn't ask
+                        // whether to keep a file known to be corrupt
+                        failures[i] = e;
+                        dstEntries[i].delete();
+                    }
+                }
+            }
         }
+        return expected;
     }
 
     private void copyDirectory(File dstEntry) throws FileCopyFailedException {
         if (!dstEntry.exists()) {
-            if (!dstEntry.mkdirs()) {
+            long start = System.nanoTime();
+            boolean created = dstEntry.mkdirs();
+            mMetrics.addIo(IoStats.Operation.MKDIR, System.nanoTime() - start);
+
+            // Another worker may have created it in the meantime
+            if (!created && !dstEntry.isDirectory()) {
                 throw new FileCopyFailedException(new FileNotReadable(dstEntry));
             }
         }
     }
 
-    private void copyFile(File srcEntry, File dstEntry, boolean overwrite) throws InterruptedException, FileCopyFailedException {
+    private byte[] copyFile(File srcEntry, File dstEntry, boolean overwrite, long resumeOffset, final StreamDuplicator.OnDuplicationProgressListener fileListener) throws InterruptedException, FileCopyFailedException {
+        if (!srcEntry.exists()) {
+            throw new FileCopyFailedException(new FileNotFoundException("Couldn't find file "+srcEntry.getPath()));
+        }
+
+        if (dstEntry.exists() && !overwrite) {
+            throw new FileCopyFailedException(new FileAlreadyExists(dstEntry));
+        }
+
+        long length = srcEntry.length();
+        // The offset can be trusted because checkpoints only cover data synced to dstEntry. Its
+        // length says little, preallocation makes it the full length, but catches a destination
+        // truncated since.
+        resumeOffset = dstEntry.exists() ? Math.min(resumeOffset, Math.min(dstEntry.length(), length)) : 0;
+
+        ContentDigest digest = null;
+        if (mOptions.getVerification() != CopyOptions.Verification.NONE) {
+            digest = newDigest();
+        }
+
+        StreamDuplicator.OnDuplicationProgressListener listener = mListener;
+        if (fileListener != null) {
+            listener = new StreamDuplicator.OnDuplicationProgressListener() {
+                @Override
+                public void onDuplicationProgress(int bytesCopied) {
+                    if (mListener != null) {
+                        mListener.onDuplicationProgress(bytesCopied);
+                    }
+                    fileListener.onDuplicationProgress(bytesCopied);
+                }
+            };
+        }
+
+        boolean rangeSplit = resumeOffset == 0 && mOptions.getRangeSplitParallelism() > 1 && length >= mOptions.getRangeSplitThreshold();
+        CopyOptions.CopyStrategy strategy = mOptions.getCopyStrategy();
+
+        if (digest == null && strategy == CopyOptions.CopyStrategy.MMAP && !mStreamDuplicator.isSparseEnabled()) {
+            mapFile(srcEntry, dstEntry, length, resumeOffset, listener);
+            return null;
+        } else if (digest == null && strategy == CopyOptions.CopyStrategy.AUTO && !rangeSplit && !mStreamDuplicator.isSparseEnabled()) {
+            autoCopyFile(srcEntry, dstEntry, length, resumeOffset, listener);
+            return null;
+        } else if (digest == null && rangeSplit) {
+            copyFileInRanges(srcEntry, dstEntry, length, fileListener);
+            return null;
+        } else {
+            streamFile(srcEntry, dstEntry, length, resumeOffset, listener, digest);
+
+            if (digest == null) {
+                return null;
+            }
+
+            byte[] expected = digest.digest();
+            if (mOptions.getVerification() == CopyOptions.Verification.VERIFY) {
+                verifyFile(dstEntry, expected);
+            }
+            return expected;
+        }
+    }
+
+    /**
+     * @param digest digest the copied data is added to, or null. When resuming, the skipped part
+     *               of the source is read and added to it too.
+     */
+    private void streamFile(File srcEntry, File dstEntry, long length, long resumeOffset, StreamDuplicator.OnDuplicationProgressListener listener, ContentDigest digest) throws InterruptedException, FileCopyFailedException {
         FileInputStream srcStream = null;
         FileOutputStream dstStream = null;
-        Uri srcUri = Uri.fromFile(srcEntry);
-        Uri dstUri = Uri.fromFile(dstEntry);
 
         try {
-            if (!srcEntry.exists()) {
-                throw new FileCopyFailedException(new FileNotFoundException("Couldn't find file "+srcEntry.getPath()));
-            }
+            srcStream = OpenFileInputStream(srcEntry);
+            InputStream source = digest != null ? digest.wrap(srcStream) : srcStream;
 
-            if (dstEntry.exists() && !overwrite) {
-                throw new FileCopyFailedException(new FileAlreadyExists(dstEntry));
+            if (resumeOffset > 0) {
+                truncateFile(dstEntry, resumeOffset);
+                try {
+                    if (digest != null) {
+                        source.skip(resumeOffset);
+                    } else {
+                        srcStream.getChannel().position(resumeOffset);
+                    }
+                } catch (IOException e) {
+                    throw new StreamDuplicationFailedException(new StreamReadFailureException(srcStream, e));
+                }
+                if (mStreamDuplicator.isSparseEnabled()) {
+                    // Holes are left by moving the destination offset, which append mode ignores
+                    resumeSparse(source, dstEntry, length, resumeOffset, listener);
+                    return;
+                }
+                dstStream = OpenFileOutputStream(dstEntry, true);
+            } else {
+                dstStream = OpenFileOutputStream(dstEntry, false);
             }
 
-            srcStream = OpenFileInputStream(srcEntry);
-            dstStream = OpenFileOutputStream(dstEntry);
+            FileChannel dstChannel = dstStream.getChannel();
+            boolean preallocated = resumeOffset == 0 && preallocate(descriptorOf(dstStream), length);
+
+            listener = writeBehind(descriptorOf(dstStream), length - resumeOffset, listener);
+            mStreamDuplicator.duplicateAdaptive(source, dstStream, length - resumeOffset, listener);
 
-            mStreamDuplicator.duplicate(srcStream, dstStream, mListener);
-        } catch (StreamDuplicationFailedException | FileNotReadable | FileNotWritable e) {
+            if (preallocated) {
+                trimToPosition(dstChannel);
+            }
+            syncFile(descriptorOf(dstStream), dstChannel);
+        } catch (StreamDuplicationFailedException e) {
+            rethrowIfInterrupted(e);
+            throw new FileCopyFailedException(e);
+        } catch (FileNotReadable | FileNotWritable e) {
             throw new FileCopyFailedException(e);
         } finally {
             FileUtils.closeSilently(srcStream);
@@ -70,10 +383,478 @@ public class LocalFSEntryDuplicator {
         }
     }
 
+    private void resumeSparse(InputStream source, File dstEntry, long length, long resumeOffset, StreamDuplicator.OnDuplicationProgressListener listener) throws StreamDuplicationFailedException, FileNotWritable {
+        RandomAccessFile dstFile = OpenWritableRandomAccessFile(dstEntry);
+        try {
+            listener = writeBehind(descriptorOf(dstFile), length - resumeOffset, listener);
+            mStreamDuplicator.duplicateSparse(source, dstFile.getChannel(), resumeOffset, listener);
+            syncFile(descriptorOf(dstFile), dstFile.getChannel());
+        } finally {
+            FileUtils.closeSilently(dstFile);
+        }
+    }
+
+    // Copies the file through sliding memory mappings, see StreamDuplicator.mapRange()
+    private void mapFile(File srcEntry, File dstEntry, long length, long resumeOffset, StreamDuplicator.OnDuplicationProgressListener listener) throws InterruptedException, FileCopyFailedException {
+        RandomAccessFile srcFile = null;
+        RandomAccessFile dstFile = null;
+
+        try {
+            srcFile = OpenRandomAccessFile(srcEntry);
+            dstFile = OpenWritableRandomAccessFile(dstEntry);
+
+            FileChannel srcChannel = srcFile.getChannel();
+            FileChannel dstChannel = dstFile.getChannel();
+            boolean mapDestination = mOptions.isMapDestination();
+
+            try {
+                // Drops whatever an overwritten file or an interrupted copy left past resumeOffset
+                dstFile.setLength(resumeOffset);
+                if (mapDestination) {
+                    dstFile.setLength(length);
+                }
+            } catch (IOException e) {
+                throw new StreamDuplicationFailedException(new StreamWriteFailureException(dstChannel, e));
+            }
+
+            if (resumeOffset == 0) {
+                preallocate(descriptorOf(dstFile), length);
+            }
+
+            listener = writeBehind(descriptorOf(dstFile), length - resumeOffset, listener);
+            mStreamDuplicator.mapRange(srcChannel, dstChannel, resumeOffset, length - resumeOffset, mOptions.getMmapWindowSize(), mapDestination, listener);
+
+            trimToSource(srcChannel, dstChannel, length);
+
+            syncFile(descriptorOf(dstFile), dstChannel);
+        } catch (StreamDuplicationFailedException e) {
+            rethrowIfInterrupted(e);
+            throw new FileCopyFailedException(e);
+        } catch (FileNotReadable | FileNotWritable e) {
+            throw new FileCopyFailedException(e);
+        } finally {
+            FileUtils.closeSilently(srcFile);
+            FileUtils.closeSilently(dstFile);
+        }
+    }
+
+    // Copies the file with the strategy the selector picks for it, calibrating it first if needed
+    private void autoCopyFile(File srcEntry, File dstEntry, long length, long resumeOffset, StreamDuplicator.OnDuplicationProgressListener listener) throws InterruptedException, FileCopyFailedException {
+        RandomAccessFile srcFile = null;
+        RandomAccessFile dstFile = null;
+
+        try {
+            srcFile = OpenRandomAccessFile(srcEntry);
+            dstFile = OpenWritableRandomAccessFile(dstEntry);
+
+            FileChannel srcChannel = srcFile.getChannel();
+            FileChannel dstChannel = dstFile.getChannel();
+
+            try {
+                // Drops whatever an overwritten file or an interrupted copy left past resumeOffset
+                dstFile.setLength(resumeOffset);
+            } catch (IOException e) {
+                throw new StreamDuplicationFailedException(new StreamWriteFailureException(dstChannel, e));
+            }
+
+            if (resumeOffset == 0) {
+                preallocate(descriptorOf(dstFile), length);
+            }
+
+            listener = writeBehind(descriptorOf(dstFile), length - resumeOffset, listener);
+
+            long position = resumeOffset;
+            CopyOptions.CopyStrategy strategy = mStrategySelector.select(srcEntry, dstEntry, length);
+            if (strategy == null) {
+                if (position == 0) {
+                    position = mStrategySelector.calibrate(srcEntry, dstEntry, mStreamDuplicator, srcChannel, dstChannel, descriptorOf(dstFile), mOptions.getMmapWindowSize(), listener);
+                }
+                strategy = mStrategySelector.select(srcEntry, dstEntry, length);
+                if (strategy == null) {
+                    strategy = CopyOptions.CopyStrategy.TRANSFER;
+                }
+            }
+
+            mMetrics.addStrategyUse(strategy);
+            CopyStrategySelector.copy(strategy, mStreamDuplicator, srcChannel, dstChannel, position, length - position, mOptions.getMmapWindowSize(), listener);
+
+            trimToSource(srcChannel, dstChannel, length);
+
+            syncFile(descriptorOf(dstFile), dstChannel);
+        } catch (StreamDuplicationFailedException e) {
+            rethrowIfInterrupted(e);
+            throw new FileCopyFailedException(e);
+        } catch (FileNotReadable | FileNotWritable e) {
+            throw new FileCopyFailedException(e);
+        } finally {
+            FileUtils.closeSilently(srcFile);
+            FileUtils.closeSilently(dstFile);
+        }
+    }
+
+    /**
+     * Sizes the destination up front and copies several byte ranges of the file at once
+     * @param fileListener notified as the ranges complete the prefix of the file, or null
+     */
+    private void copyFileInRanges(File srcEntry, File dstEntry, long length, StreamDuplicator.OnDuplicationProgressListener fileListener) throws InterruptedException, FileCopyFailedException {
+        RandomAccessFile srcFile = null;
+        RandomAccessFile dstFile = null;
+        ExecutorService workers = null;
+
+        try {
+            srcFile = OpenRandomAccessFile(srcEntry);
+            dstFile = OpenWritableRandomAccessFile(dstEntry);
+
+            final FileChannel srcChannel = srcFile.getChannel();
+            final FileChannel dstChannel = dstFile.getChannel();
+
+            try {
+                if (mStreamDuplicator.isSparseEnabled()) {
+                    // Holes are left by not writing, so nothing of an overwritten file may remain
+                    dstFile.setLength(0);
+                }
+                dstFile.setLength(length);
+            } catch (IOException e) {
+                throw new StreamDuplicationFailedException(new StreamWriteFailureException(dstChannel, e));
+            }
+            preallocate(descriptorOf(dstFile), length);
+
+            // Called from every range at once, the task's progress counters are atomic
+            final StreamDuplicator.OnDuplicationProgressListener progressListener = new StreamDuplicator.OnDuplicationProgressListener() {
+                @Override
+                public void onDuplicationProgress(int bytesCopied) {
+                    if (mListener != null) {
+                        mListener.onDuplicationProgress(bytesCopied);
+                    }
+                }
+            };
+            final StreamDuplicator.OnDuplicationProgressListener aggregateListener = writeBehind(descriptorOf(dstFile), length, progressListener);
+
+            int parallelism = mOptions.getRangeSplitParallelism();
+            long rangeSize = (length + parallelism - 1) / parallelism;
+            workers = Executors.newFixedThreadPool(parallelism);
+            CompletionService<Void> completionService = new ExecutorCompletionService<>(workers);
+
+            PrefixProgress prefixProgress = null;
+            if (fileListener != null) {
+                prefixProgress = new PrefixProgress((int) ((length + rangeSize - 1) / rangeSize), rangeSize, fileListener);
+            }
+
+            int ranges = 0;
+            for (long position = 0; position < length; position += rangeSize) {
+                final long rangeStart = position;
+                final long rangeLength = Math.min(rangeSize, length - position);
+                final StreamDuplicator.OnDuplicationProgressListener rangeListener = prefixProgress != null
+                        ? prefixProgress.forRange(ranges, aggregateListener)
+                        : aggregateListener;
+                completionService.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws StreamDuplicationFailedException {
+                        mStreamDuplicator.copyRange(srcChannel, dstChannel, rangeStart, rangeLength, rangeListener);
+                        return null;
+                    }
+                });
+                ranges++;
+            }
+
+            for (int i = 0; i < ranges; i++) {
+                try {
+                    completionService.take().get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof StreamDuplicationFailedException) {
+                        throw (StreamDuplicationFailedException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new RuntimeException(cause);
+                }
+            }
+
+            // The ranges stop early at the end of a source that shrank, past which dst was sized
+            trimToSource(srcChannel, dstChannel, length);
+
+            syncFile(descriptorOf(dstFile), dstChannel);
+        } catch (StreamDuplicationFailedException e) {
+            rethrowIfInterrupted(e);
+            throw new FileCopyFailedException(e);
+        } catch (FileNotReadable | FileNotWritable e) {
+            throw new FileCopyFailedException(e);
+        } finally {
+            if (workers != null) {
+                workers.shutdownNow();
+                ThreadUtils.awaitTerminationUninterruptibly(workers);
+            }
+            FileUtils.closeSilently(srcFile);
+            FileUtils.closeSilently(dstFile);
+        }
+    }
+
+    /**
+     * Turns the progress of ranges copied at once into the progress of the prefix of the file they
+     * completed, the only part a copy can be resumed from. The listener is called with the lock
+     * held, so it sees the prefix grow in order.
+     */
+    private static class PrefixProgress {
+        private final long mRangeSize;
+        private final long[] mCopied;
+        private final StreamDuplicator.OnDuplicationProgressListener mListener;
+        private long mReported;
+
+        PrefixProgress(int ranges, long rangeSize, StreamDuplicator.OnDuplicationProgressListener listener) {
+            mRangeSize = rangeSize;
+            mCopied = new long[ranges];
+            mListener = listener;
+        }
+
+        StreamDuplicator.OnDuplicationProgressListener forRange(final int range, final StreamDuplicator.OnDuplicationProgressListener delegate) {
+            return new StreamDuplicator.OnDuplicationProgressListener() {
+                @Override
+                public void onDuplicationProgress(int bytesCopied) {
+                    if (delegate != null) {
+                        delegate.onDuplicationProgress(bytesCopied);
+                    }
+                    onRangeProgress(range, bytesCopied);
+                }
+            };
+        }
+
+        private synchronized void onRangeProgress(int range, int bytesCopied) {
+            mCopied[range] += bytesCopied;
+
+            // Only the last range can be shorter, so a range not full yet ends the prefix
+            long prefix = 0;
+            for (long copied : mCopied) {
+                prefix += copied;
+                if (copied < mRangeSize) {
+                    break;
+                }
+            }
+
+            // Completing a range may add the ranges after it, which were done already
+            while (mReported < prefix) {
+                int advanced = (int) Math.min(Integer.MAX_VALUE, prefix - mReported);
+                mReported += advanced;
+                mListener.onDuplicationProgress(advanced);
+            }
+        }
+    }
+
+    /**
+     * Reserves length bytes of disk for a file about to be written, so it doesn't get fragmented
+     * and its size isn't updated on every write. The file is grown to length, which the caller
+     * must undo if less data gets written. Holes of sparse copies would be filled, so they are
+     * never preallocated.
+     * @return whether the file was preallocated
+     */
+    private boolean preallocate(FileDescriptor fd, long length) {
+        if (!mOptions.isPreallocate() || mStreamDuplicator.isSparseEnabled()) {
+            return false;
+        }
+
+        long start = System.nanoTime();
+        if (!FileUtils.preallocate(fd, length)) {
+            return false;
+        }
+
+        mMetrics.addPreallocation(System.nanoTime() - start);
+        return true;
+    }
+
+    // Cuts off what was sized or preallocated past the end of a source that shrank while copying it
+    private void trimToSource(FileChannel srcChannel, FileChannel dstChannel, long length) throws StreamDuplicationFailedException {
+        try {
+            long copiedLength = Math.min(length, srcChannel.size());
+            if (dstChannel.size() > copiedLength) {
+                dstChannel.truncate(copiedLength);
+            }
+        } catch (IOException e) {
+            throw new StreamDuplicationFailedException(new StreamWriteFailureException(dstChannel, e));
+        }
+    }
+
+    // Cuts off the preallocated space the copy didn't fill, if the source shrank meanwhile
+    private void trimToPosition(FileChannel channel) throws StreamDuplicationFailedException {
+        try {
+            long position = channel.position();
+            if (channel.size() > position) {
+                channel.truncate(position);
+            }
+        } catch (IOException e) {
+            throw new StreamDuplicationFailedException(new StreamWriteFailureException(channel, e));
+        }
+    }
+
+    /**
+     * Wraps listener so the data written to fd is flushed to the storage device every
+     * WRITE_BEHIND_INTERVAL bytes, for big files when page cache hygiene is enabled. Otherwise
+     * listener is returned as is.
+     */
+    private StreamDuplicator.OnDuplicationProgressListener writeBehind(FileDescriptor fd, long length, StreamDuplicator.OnDuplicationProgressListener listener) {
+        if (!mOptions.isPageCacheFriendly() || length < WRITE_BEHIND_THRESHOLD) {
+            return listener;
+        }
+        return new WriteBehindListener(fd, listener);
+    }
+
+    /**
+     * Keeps a big copy from filling the page cache with dirty pages. Those can only be reclaimed
+     * once written back, so while they pile up the rest of the device stalls on memory and on its
+     * own writes. Flushing them as the copy goes leaves clean pages the kernel can drop at will.
+     */
+    private class WriteBehindListener implements StreamDuplicator.OnDuplicationProgressListener {
+        private final FileDescriptor mFd;
+        private final StreamDuplicator.OnDuplicationProgressListener mDelegate;
+        private final AtomicLong mUnflushedBytes = new AtomicLong();
+
+        WriteBehindListener(FileDescriptor fd, StreamDuplicator.OnDuplicationProgressListener delegate) {
+            mFd = fd;
+            mDelegate = delegate;
+        }
+
+        @Override
+        public void onDuplicationProgress(int bytesCopied) {
+            if (mDelegate != null) {
+                mDelegate.onDuplicationProgress(bytesCopied);
+            }
+
+            long unflushed = mUnflushedBytes.addAndGet(bytesCopied);
+            // Only one of the threads copying ranges of the file gets to flush
+            if (unflushed >= WRITE_BEHIND_INTERVAL && mUnflushedBytes.compareAndSet(unflushed, 0)) {
+                long start = System.nanoTime();
+                try {
+                    FileUtils.dataSync(mFd);
+                } catch (IOException e) {
+                    // Linux reports a writeback error to one sync call only, and never on close,
+                    // so it's kept for the syncFile call that ends the copy
+                    mWriteBehindErrors.put(mFd, e);
+                }
+                mMetrics.addWriteBehind(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private FileDescriptor descriptorOf(FileOutputStream stream) throws StreamDuplicationFailedException {
+        try {
+            return stream.getFD();
+        } catch (IOException e) {
+            throw new StreamDuplicationFailedException(new StreamWriteFailureException(stream, e));
+        }
+    }
+
+    private FileDescriptor descriptorOf(RandomAccessFile file) throws StreamDuplicationFailedException {
+        try {
+            return file.getFD();
+        } catch (IOException e) {
+            throw new StreamDuplicationFailedException(new StreamWriteFailureException(file.getChannel(), e));
+        }
+    }
+
+    /**
+     * Flushes the file to the storage device when the durability policy asks for it per file.
+     * Whatever the policy, fails if a write-behind flush of the file got a writeback error.
+     */
+    private void syncFile(FileDescriptor fd, FileChannel channel) throws StreamDuplicationFailedException {
+        IOException writeBehindError = mWriteBehindErrors.remove(fd);
+        if (writeBehindError != null) {
+            throw new StreamDuplicationFailedException(new StreamWriteFailureException(channel, writeBehindError));
+        }
+
+        if (mOptions.getDurability() != CopyOptions.Durability.PER_FILE) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            fd.sync();
+        } catch (IOException e) {
+            throw new StreamDuplicationFailedException(new StreamWriteFailureException(channel, e));
+        }
+        mMetrics.addSync(System.nanoTime() - start);
+    }
+
+    /**
+     * Flushes an already written file to the storage device, as the BATCHED durability policy does
+     * once every file of a task has been copied.
+     */
+    void syncWrittenFile(File dstEntry) throws IOException {
+        long start = System.nanoTime();
+        FileInputStream stream = new FileInputStream(dstEntry);
+        try {
+            stream.getFD().sync();
+        } finally {
+            FileUtils.closeSilently(stream);
+        }
+        mMetrics.addSync(System.nanoTime() - start);
+    }
+
+    // Reads the destination back and compares its digest with the one computed while copying
+    private void verifyFile(File dstEntry, byte[] expected) throws FileCopyFailedException {
+        ContentDigest digest = newDigest();
+        InputStream dstStream = null;
+
+        try {
+            dstStream = digest.wrap(OpenFileInputStream(dstEntry));
+            byte[] buffer = mStreamDuplicator.getBufferPool() != null
+                    ? mStreamDuplicator.getBufferPool().acquire(VERIFY_BUFFER_SIZE)
+                    : new byte[VERIFY_BUFFER_SIZE];
+            try {
+                while (dstStream.read(buffer, 0, VERIFY_BUFFER_SIZE) != -1) {
+                    // Only the digest matters
+                }
+            } catch (IOException e) {
+                throw new StreamDuplicationFailedException(new StreamReadFailureException(dstStream, e));
+            } finally {
+                if (mStreamDuplicator.getBufferPool() != null) {
+                    mStreamDuplicator.getBufferPool().release(buffer);
+                }
+            }
+
+            byte[] actual = digest.digest();
+            if (!Arrays.equals(expected, actual)) {
+                throw new FileCopyFailedException(new ChecksumMismatch(dstEntry, ContentDigest.toHex(expected), ContentDigest.toHex(actual)));
+            }
+        } catch (StreamDuplicationFailedException | FileNotReadable e) {
+            throw new FileCopyFailedException(e);
+        } finally {
+            FileUtils.closeSilently(dstStream);
+        }
+    }
+
+    private ContentDigest newDigest() {
+        try {
+            return ContentDigest.getInstance(mOptions.getDigestAlgorithm());
+        } catch (NoSuchAlgorithmException e) {
+            // Already validated by CopyOptions.Builder
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void rethrowIfInterrupted(StreamDuplicationFailedException e) throws InterruptedException {
+        if (e.getCause() instanceof InterruptedException) {
+            throw (InterruptedException) e.getCause();
+        }
+    }
+
+
+    private void truncateFile(File dstEntry, long length) throws FileNotWritable {
+        RandomAccessFile file = OpenWritableRandomAccessFile(dstEntry);
+        try {
+            file.setLength(length);
+        } catch (IOException e) {
+            throw new FileNotWritable(dstEntry, "Couldn't truncate it for resuming", e);
+        } finally {
+            FileUtils.closeSilently(file);
+        }
+    }
+
     @NonNull
-    private FileOutputStream OpenFileOutputStream(File dstEntry) throws FileNotWritable {
+    private FileOutputStream OpenFileOutputStream(File dstEntry, boolean append) throws FileNotWritable {
+        long start = System.nanoTime();
         try {
-            return new FileOutputStream(dstEntry);
+            FileOutputStream stream = new FileOutputStream(dstEntry, append);
+            onOpened(start, dstEntry);
+            return stream;
         } catch (FileNotFoundException e) {
             throw new FileNotWritable(dstEntry);
         }
@@ -81,13 +862,46 @@ public class LocalFSEntryDuplicator {
 
     @NonNull
     private FileInputStream OpenFileInputStream(File srcEntry) throws FileNotReadable {
+        long start = System.nanoTime();
         try {
-            return new FileInputStream(srcEntry);
+            FileInputStream stream = new FileInputStream(srcEntry);
+            onOpened(start, srcEntry);
+            return stream;
         } catch (FileNotFoundException e) {
             throw new FileNotReadable(srcEntry);
         }
     }
 
+    @NonNull
+    private RandomAccessFile OpenRandomAccessFile(File srcEntry) throws FileNotReadable {
+        long start = System.nanoTime();
+        try {
+            RandomAccessFile file = new RandomAccessFile(srcEntry, "r");
+            onOpened(start, srcEntry);
+            return file;
+        } catch (FileNotFoundException e) {
+            throw new FileNotReadable(srcEntry);
+        }
+    }
+
+    @NonNull
+    private RandomAccessFile OpenWritableRandomAccessFile(File dstEntry) throws FileNotWritable {
+        long start = System.nanoTime();
+        try {
+            RandomAccessFile file = new RandomAccessFile(dstEntry, "rw");
+            onOpened(start, dstEntry);
+            return file;
+        } catch (FileNotFoundException e) {
+            throw new FileNotWritable(dstEntry);
+        }
+    }
+
+    // Failed opens are left out, they are reported as errors instead
+    private void onOpened(long start, File entry) {
+        mMetrics.addIo(IoStats.Operation.OPEN, System.nanoTime() - start);
+        mTraceRecorder.complete(FileSystemTask.TRACE_IO, "open", start, "path", entry.getPath());
+    }
+
     public static class FileCopyFailedException extends Exception {
         public FileCopyFailedException(Exception e) {
             super(e);
@@ -6,21 +6,37 @@ import android.support.annotation.NonNull;
 import android.util.Log;
 
 import com.adyrsoft.soul.data.Entry;
+import com.adyrsoft.soul.utils.BackgroundFileTreeWalker;
+import com.adyrsoft.soul.utils.ContentDigest;
+import com.adyrsoft.soul.utils.DeltaDuplicator;
+import com.adyrsoft.soul.utils.FileTreeWalker;
 import com.adyrsoft.soul.utils.FileUtils;
+import com.adyrsoft.soul.utils.ParallelTreeScanner;
 import com.adyrsoft.soul.utils.StreamDuplicationFailedException;
 import com.adyrsoft.soul.utils.StreamDuplicator;
 import com.adyrsoft.soul.utils.StreamReadFailureException;
 import com.adyrsoft.soul.utils.StreamWriteFailureException;
+import com.adyrsoft.soul.utils.ThreadUtils;
+import com.adyrsoft.soul.utils.TraceRecorder;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Subclass of FileSystemTask that represents a file system task on the local file system
@@ -28,185 +44,1027 @@ import java.util.List;
 public class LocalFileSystemTask extends FileSystemTask {
     public static final String TAG = LocalFileSystemTask.class.getName();
 
+    // FAT file systems, common on SD cards, only keep modification times with 2 seconds precision
+    private static final long MODIFICATION_TIME_TOLERANCE_MSEC = 2000;
+    private static final int COMPARE_BUFFER_SIZE = 64 * 1024;
+    // Most copied files waiting to be synced before their done entries are written
+    private static final int MAX_UNSYNCED_DONE = 256;
+
+    private File mJournalDir;
+    private CopyJournal mJournal;
+    private CopyManifest mManifest;
+    private CopyStrategySelector mStrategySelector = new CopyStrategySelector();
+    private final List<File> mPendingSyncs = Collections.synchronizedList(new ArrayList<File>());
+    // Files copied whose done entry waits for them to be synced, guarded by itself
+    private final List<UnsyncedFile> mUnsyncedDone = new ArrayList<>();
+    private long mUnsyncedDoneBytes;
+    // Relative paths of every source entry a sync walked, when extraneous entries are deleted
+    private Set<String> mSyncedPaths;
+    private volatile boolean mFoundUnreadableEntries;
+    // Set when the sync destination refuses the modification times given to its files, as FUSE
+    // and sdcardfs mounts commonly do. Files of the same size are then compared by contents.
+    private volatile boolean mModificationTimesUnsupported;
+    // Counts the entries of the current walk ahead of it, to know the totals early
+    private volatile ParallelTreeScanner mScanner;
+    // Turn the entries walked into the file totals: each one is processed once per destination,
+    // after the entries a move already renamed before walking the rest
+    private volatile int mCopiesPerEntry = 1;
+    private volatile int mFilesBeforeWalk;
+
     public LocalFileSystemTask(FileOperation op, Uri srcWD, List<Uri> srcs, Uri dst, TaskListener listener) {
         super(op, srcWD, srcs, dst, listener);
     }
 
+    LocalFileSystemTask(FileOperation op, Uri srcWD, List<Uri> srcs, Uri dst, TaskListener listener, StreamDuplicator duplicator) {
+        super(op, srcWD, srcs, dst, listener, duplicator);
+    }
+
+    LocalFileSystemTask(FileOperation op, Uri srcWD, List<Uri> srcs, Uri dst, TaskListener listener, StreamDuplicator duplicator, CopyOptions copyOptions) {
+        super(op, srcWD, srcs, dst, listener, duplicator, copyOptions);
+    }
+
+    LocalFileSystemTask(FileOperation op, Uri srcWD, List<Uri> srcs, List<Uri> dsts, TaskListener listener, StreamDuplicator duplicator, CopyOptions copyOptions) {
+        super(op, srcWD, srcs, dsts, listener, duplicator, copyOptions);
+    }
+
+    /**
+     * Folder where copies keep their CopyJournal. Without one copies can't be resumed.
+     */
+    void setJournalDirectory(File journalDir) {
+        mJournalDir = journalDir;
+    }
+
+    /**
+     * Selector the AUTO copy strategy uses, shared with other tasks so it's only calibrated once
+     */
+    void setStrategySelector(CopyStrategySelector strategySelector) {
+        mStrategySelector = strategySelector;
+    }
+
     @Override
     protected void copy(Uri srcWD, List<Uri> srcs, Uri dst) throws InterruptedException {
+        LocalFSEntryDuplicator entryDuplicator = newEntryDuplicator();
+
+        List<Uri> dsts = getDsts();
+        if (dsts.size() > 1) {
+            startManifest();
+            mCopiesPerEntry = dsts.size();
+
+            BackgroundFileTreeWalker walker = startWalk(srcs, FileTreeWalker.Order.PRE_ORDER, copiesInsideSources(srcWD, srcs, dsts));
+            try {
+                fanOutCopy(entryDuplicator, srcWD, walker, dsts);
+                syncPendingFiles(entryDuplicator);
+            } finally {
+                stopWalk(walker);
+            }
+            return;
+        }
+
+        startManifest();
+
+        if (mJournalDir != null && getCopyOptions().isResumable()) {
+            mJournal = CopyJournal.open(mJournalDir, srcWD, srcs, dst);
+        }
+
+        BackgroundFileTreeWalker walker = startWalk(srcs, FileTreeWalker.Order.PRE_ORDER, copiesInsideSources(srcWD, srcs, Collections.singletonList(dst)));
+        boolean completed = false;
+        try {
+            copyEntries(entryDuplicator, srcWD, walker, dst, false);
+            syncPendingFiles(entryDuplicator);
+            completed = true;
+        } finally {
+            stopWalk(walker);
+            if (mJournal != null) {
+                if (completed) {
+                    mJournal.delete();
+                } else {
+                    // Spares the next run the files already copied
+                    markSyncedDone(entryDuplicator, mJournal, takeUnsyncedDone());
+                    mJournal.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the entries into every destination, reading each file only once however many
+     * destinations there are. The destinations that fail are copied again one by one through
+     * copyEntry, so their errors are handled as usual while the others carry on. Folders and
+     * files that already exist in a destination also go through copyEntry, to be asked about.
+     */
+    private void fanOutCopy(LocalFSEntryDuplicator entryDuplicator, Uri srcWD, FileTreeWalker entries, List<Uri> dsts) throws InterruptedException {
+        File srcEntry;
+        while ((srcEntry = nextEntry(entries)) != null) {
+            Uri entry = Uri.fromFile(srcEntry);
+
+            if (srcEntry.isDirectory()) {
+                for (Uri dst : dsts) {
+                    copyEntry(entryDuplicator, srcWD, entry, dst, false);
+                }
+                continue;
+            }
+
+            String relativePath = relativePath(srcWD, srcEntry);
+            List<Uri> newDsts = new ArrayList<>();
+            for (Uri dst : dsts) {
+                if (new File(dst.getPath(), relativePath).exists()) {
+                    copyEntry(entryDuplicator, srcWD, entry, dst, false);
+                } else {
+                    newDsts.add(dst);
+                }
+            }
+
+            if (newDsts.isEmpty()) {
+                continue;
+            }
+
+            File[] dstEntries = new File[newDsts.size()];
+            for (int i = 0; i < dstEntries.length; i++) {
+                dstEntries[i] = new File(newDsts.get(i).getPath(), relativePath);
+            }
+
+            setSource(entry);
+            setDest(Uri.fromFile(dstEntries[0]));
+
+            LocalFSEntryDuplicator.FileCopyFailedException[] failures = new LocalFSEntryDuplicator.FileCopyFailedException[dstEntries.length];
+            byte[] digest = null;
+            try {
+                digest = entryDuplicator.copyFileToAll(srcEntry, dstEntries, failures);
+            } catch (LocalFSEntryDuplicator.FileCopyFailedException e) {
+                // The source couldn't be read, copyEntry reports it for each destination
+                Arrays.fill(failures, e);
+            }
+
+            boolean allCopied = true;
+            for (int i = 0; i < dstEntries.length; i++) {
+                if (failures[i] != null) {
+                    Log.w(TAG, "Copy to " + dstEntries[i] + " failed, copying it alone", failures[i]);
+                    copyEntry(entryDuplicator, srcWD, entry, newDsts.get(i), false);
+                    allCopied = false;
+                } else {
+                    if (getCopyOptions().getDurability() == CopyOptions.Durability.BATCHED) {
+                        mPendingSyncs.add(dstEntries[i]);
+                    }
+                    incrementProcessedFiles(1);
+                }
+            }
+
+            // Destinations copied alone already added their own entry
+            if (mManifest != null && digest != null && allCopied) {
+                boolean verified = getCopyOptions().getVerification() == CopyOptions.Verification.VERIFY;
+                mManifest.add(new CopyManifest.Entry(relativePath, srcEntry.length(), ContentDigest.toHex(digest), verified));
+            }
+        }
+    }
+
+    /**
+     * Only copies the entries that are new or changed since the last time they were copied to dst,
+     * telling them apart by size and modification time, and optionally by their contents. Copied
+     * files keep the modification time of their source, so the next sync sees them as unchanged.
+     * Destinations that refuse modification times get files of the same size compared by contents.
+     */
+    @Override
+    protected void sync(Uri srcWD, List<Uri> srcs, Uri dst) throws InterruptedException {
+        LocalFSEntryDuplicator entryDuplicator = newEntryDuplicator();
+
+        startManifest();
+
+        boolean deleteExtraneous = getCopyOptions().isDeleteExtraneous();
+        mSyncedPaths = deleteExtraneous ? Collections.synchronizedSet(new HashSet<String>()) : null;
+        mModificationTimesUnsupported = !keepsModificationTimes(new File(dst.getPath()));
+
+        BackgroundFileTreeWalker walker = startWalk(srcs, FileTreeWalker.Order.PRE_ORDER, copiesInsideSources(srcWD, srcs, Collections.singletonList(dst)));
+        try {
+            copyEntries(entryDuplicator, srcWD, walker, dst, true);
+        } finally {
+            stopWalk(walker);
+        }
+        syncPendingFiles(entryDuplicator);
+
+        // Whatever is under a folder that couldn't be listed would look extraneous
+        if (deleteExtraneous && !mFoundUnreadableEntries) {
+            removeExtraneous(srcWD, srcs, dst, mSyncedPaths);
+        }
+    }
+
+    private boolean isUpToDate(File srcEntry, File dstEntry) {
+        if (!dstEntry.exists()) {
+            return false;
+        }
+
+        if (srcEntry.isDirectory() || dstEntry.isDirectory()) {
+            return srcEntry.isDirectory() && dstEntry.isDirectory();
+        }
+
+        if (srcEntry.length() != dstEntry.length()) {
+            return false;
+        }
+
+        long srcModified = srcEntry.lastModified();
+        if (Math.abs(srcModified - dstEntry.lastModified()) <= MODIFICATION_TIME_TOLERANCE_MSEC) {
+            return true;
+        }
+
+        if ((getCopyOptions().isCompareContents() || mModificationTimesUnsupported) && haveSameContents(srcEntry, dstEntry)) {
+            if (!mModificationTimesUnsupported) {
+                // Spare the comparison next time
+                setModificationTime(dstEntry, srcModified);
+            }
+            return true;
+        }
+
+        return false;
+    }
+
+    // Giving a folder its own modification time tells whether its file system accepts new ones
+    private static boolean keepsModificationTimes(File dir) {
+        return !dir.exists() || dir.setLastModified(dir.lastModified());
+    }
+
+    private void setModificationTime(File dstEntry, long modified) {
+        if (dstEntry.setLastModified(modified)) {
+            return;
+        }
+
+        // Without it the next sync would see the file as changed and copy it again
+        if (!mModificationTimesUnsupported) {
+            Log.w(TAG, "Couldn't set the modification time of " + dstEntry.getPath() + ", files of the same size will be compared by contents");
+        }
+        mModificationTimesUnsupported = true;
+    }
+
+    private boolean haveSameContents(File srcEntry, File dstEntry) {
+        InputStream srcStream = null;
+        InputStream dstStream = null;
+        byte[] srcBuffer = new byte[COMPARE_BUFFER_SIZE];
+        byte[] dstBuffer = new byte[COMPARE_BUFFER_SIZE];
+
+        try {
+            srcStream = new FileInputStream(srcEntry);
+            dstStream = new FileInputStream(dstEntry);
+
+            while (true) {
+                int srcRead = readFully(srcStream, srcBuffer);
+                int dstRead = readFully(dstStream, dstBuffer);
+
+                if (srcRead != dstRead) {
+                    return false;
+                }
+
+                if (srcRead == 0) {
+                    return true;
+                }
+
+                for (int i = 0; i < srcRead; i++) {
+                    if (srcBuffer[i] != dstBuffer[i]) {
+                        return false;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // Copying it again will bring up the error if it's persistent
+            return false;
+        } finally {
+            FileUtils.closeSilently(srcStream);
+            FileUtils.closeSilently(dstStream);
+        }
+    }
+
+    private int readFully(InputStream is, byte[] buffer) throws IOException {
+        int total = 0;
+        int read;
+        while (total < buffer.length && (read = is.read(buffer, total, buffer.length - total)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+
+    // Deletes whatever is inside the synced destinations but doesn't exist in the source anymore
+    private void removeExtraneous(Uri srcWD, List<Uri> srcs, Uri dst, Set<String> srcPaths) throws InterruptedException {
+        File dstDir = new File(dst.getPath());
+        List<File> dstRoots = new ArrayList<>();
+
+        for (Uri src : srcs) {
+            File dstRoot = new File(dstDir, relativePath(srcWD, new File(src.getPath())));
+            if (dstRoot.exists()) {
+                dstRoots.add(dstRoot);
+            }
+        }
+
+        FileTreeWalker walker = new FileTreeWalker(dstRoots, FileTreeWalker.Order.POST_ORDER, mUnreadableEntryListener);
+        File fileEntry;
+        while ((fileEntry = walker.next()) != null) {
+            Uri entry = Uri.fromFile(fileEntry);
+            String relativePath = stripTrailingSeparator(relativePath(dst, fileEntry));
+
+            if (srcPaths.contains(relativePath)) {
+                continue;
+            }
+
+            setSource(entry);
+
+            if (!timedDelete(fileEntry) && fileEntry.exists()) {
+                onError(entry, null, FileSystemErrorType.UNKNOWN);
+            }
+        }
+    }
+
+    private String relativePath(Uri base, File entry) {
+        return new File(base.getPath())
+                .toURI()
+                .relativize(entry.toURI())
+                .getPath();
+    }
+
+    private String stripTrailingSeparator(String path) {
+        return path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+    }
+
+    private final DeltaDuplicator.OnDeltaProgressListener mDeltaListener = new DeltaDuplicator.OnDeltaProgressListener() {
+        @Override
+        public void onDeltaProgress(int deltaBytes, int savedBytes) {
+            incrementDeltaBytes(deltaBytes);
+            incrementSavedBytes(savedBytes);
+        }
+    };
+
+    private final StreamDuplicator.OnIoListener mIoListener = new StreamDuplicator.OnIoListener() {
+        @Override
+        public void onRead(long nanos, int bytes) {
+            getMetrics().addIo(IoStats.Operation.READ, nanos, bytes);
+            trace("read", nanos, bytes);
+        }
+
+        @Override
+        public void onWrite(long nanos, int bytes) {
+            getMetrics().addIo(IoStats.Operation.WRITE, nanos, bytes);
+            trace("write", nanos, bytes);
+        }
+
+        @Override
+        public void onTransfer(long nanos, long bytes) {
+            getMetrics().addIo(IoStats.Operation.TRANSFER, nanos, bytes);
+            trace("transfer", nanos, bytes);
+        }
+
+        // Each chunk becomes a span of the thread that moved it
+        private void trace(String name, long nanos, long bytes) {
+            TraceRecorder traceRecorder = getTraceRecorder();
+            if (traceRecorder.isEnabled()) {
+                traceRecorder.complete(TRACE_IO, name, System.nanoTime() - nanos, "bytes", bytes);
+            }
+        }
+    };
+
+    private LocalFSEntryDuplicator newEntryDuplicator() {
+        getStreamDuplicator().setSparseEnabled(getCopyOptions().isSparse());
+        getStreamDuplicator().setIoListener(mIoListener);
+        switch (getCopyOptions().getCopyStrategy()) {
+            case STREAM:
+                getStreamDuplicator().setChannelTransferEnabled(false);
+                break;
+            case TRANSFER:
+                getStreamDuplicator().setChannelTransferEnabled(true);
+                break;
+        }
         LocalFSEntryDuplicator entryDuplicator = new LocalFSEntryDuplicator(getStreamDuplicator(), new StreamDuplicator.OnDuplicationProgressListener() {
             @Override
             public void onDuplicationProgress(int bytesCopied) {
                 incrementProcessedBytes(bytesCopied);
-                onProgressUpdate();
             }
-        });
+        }, getCopyOptions(), getMetrics(), mStrategySelector);
+        entryDuplicator.setTraceRecorder(getTraceRecorder());
+        return entryDuplicator;
+    }
 
-        List<Uri> expandedSrcs = expandFileList(srcs);
+    // Flushes every file copied so far to the storage device, for the BATCHED durability policy
+    private void syncPendingFiles(LocalFSEntryDuplicator entryDuplicator) throws InterruptedException {
+        List<File> pending;
+        synchronized (mPendingSyncs) {
+            pending = new ArrayList<>(mPendingSyncs);
+            mPendingSyncs.clear();
+        }
 
-        setTotalFiles(expandedSrcs.size());
+        for (File dstEntry : pending) {
+            syncWrittenFile(entryDuplicator, dstEntry);
+        }
+    }
 
-        for(Uri entry : expandedSrcs) {
-            File srcEntry = new File(entry.getPath());
-            String relativePath = new File(srcWD.getPath())
-                    .toURI()
-                    .relativize(srcEntry.toURI())
-                    .getPath();
+    /**
+     * @return whether dstEntry made it to storage, false if the user chose to go on without it
+     */
+    private boolean syncWrittenFile(LocalFSEntryDuplicator entryDuplicator, File dstEntry) throws InterruptedException {
+        while (true) {
+            try {
+                entryDuplicator.syncWrittenFile(dstEntry);
+                return true;
+            } catch (IOException e) {
+                Log.w(TAG, "Couldn't sync " + dstEntry, e);
+                Solution solution = onError(null, Uri.fromFile(dstEntry), FileSystemErrorType.WRITE_ERROR);
+                switch (solution.getAction()) {
+                    case RETRY_CONTINUE:
+                        break;
+                    case IGNORE:
+                        return false;
+                    case CANCEL:
+                        throw new InterruptedException("User cancelled the task");
+                }
+            }
+        }
+    }
 
-            File dstEntry = new File(dst.getPath(), relativePath);
+    private void startManifest() {
+        if (getCopyOptions().getVerification() != CopyOptions.Verification.NONE) {
+            mManifest = new CopyManifest(getCopyOptions().getDigestAlgorithm());
+            setOutput(mManifest);
+        }
+    }
 
-            setSource(entry);
-            setDest(Uri.fromFile(dstEntry));
+    /**
+     * @param sync whether existing destination files are replaced without asking and copied files
+     *             get the modification time of their source
+     */
+    private void copyEntries(LocalFSEntryDuplicator entryDuplicator, Uri srcWD, FileTreeWalker entries, Uri dst, boolean sync) throws InterruptedException {
+        int parallelism = getCopyOptions().getParallelism();
+        if (parallelism > 1) {
+            parallelCopy(entryDuplicator, srcWD, entries, dst, parallelism, sync);
+        } else {
+            File entry;
+            while ((entry = nextEntry(entries)) != null) {
+                copyEntry(entryDuplicator, srcWD, Uri.fromFile(entry), dst, sync);
+            }
+        }
+    }
 
-            boolean retry = false;
-            boolean overwrite = false;
+    // Creates the folders in order, as they are found, and copies the files on a pool of worker
+    // threads. The walk is kept only a few files ahead of the workers.
+    private void parallelCopy(final LocalFSEntryDuplicator entryDuplicator, final Uri srcWD, FileTreeWalker entries, final Uri dst, int parallelism, final boolean sync) throws InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism);
+        CompletionService<Void> completionService = new ExecutorCompletionService<>(workers);
+        int maxPending = parallelism * 2;
+        int pending = 0;
 
-            Solution errorSolution = null;
-            FileSystemErrorType error = FileSystemErrorType.NONE;
+        try {
+            File entry;
+            while ((entry = nextEntry(entries)) != null) {
+                final Uri entryUri = Uri.fromFile(entry);
 
-            do {
-                try {
-                    entryDuplicator.copyEntry(srcEntry, dstEntry, overwrite);
-                    retry = false;
-                    error = FileSystemErrorType.NONE;
-                } catch (LocalFSEntryDuplicator.FileCopyFailedException e) {
-                    Throwable cause = e.getCause();
+                if (entry.isDirectory()) {
+                    // None of its files has been handed to the workers yet
+                    copyEntry(entryDuplicator, srcWD, entryUri, dst, sync);
+                    continue;
+                }
 
-                    if (cause instanceof FileNotReadable) {
-                        error = FileSystemErrorType.SOURCE_NOT_READABLE;
-                        errorSolution = onError(entry, Uri.fromFile(dstEntry), error);
-                    } else if (cause instanceof FileNotWritable) {
-                        error = FileSystemErrorType.DEST_NOT_WRITABLE;
-                        errorSolution = onError(entry, Uri.fromFile(dstEntry), error);
-                    } else if (cause instanceof StreamDuplicationFailedException) {
-                        Throwable subCause = e.getCause();
-
-                        if (subCause instanceof StreamReadFailureException) {
-                            error = FileSystemErrorType.READ_ERROR;
-                            errorSolution = onError(entry, Uri.fromFile(dstEntry), error);
-                        } else {
-                            error = FileSystemErrorType.WRITE_ERROR;
-                            errorSolution = onError(entry, Uri.fromFile(dstEntry), error);
-                        }
-                    } else if (cause instanceof FileNotFoundException) {
-                        error = FileSystemErrorType.SOURCE_DOESNT_EXIST;
-                        errorSolution = onError(entry, Uri.fromFile(dstEntry), error);
-                    } else if (cause instanceof FileAlreadyExists) {
-                        error = FileSystemErrorType.DEST_ALREADY_EXISTS;
-                        errorSolution = onError(entry, Uri.fromFile(dstEntry), error);
+                if (pending == maxPending) {
+                    awaitCopy(completionService);
+                    pending--;
+                }
+
+                completionService.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws InterruptedException {
+                        copyEntry(entryDuplicator, srcWD, entryUri, dst, sync);
+                        return null;
                     }
+                });
+                pending++;
+            }
+
+            for (; pending > 0; pending--) {
+                awaitCopy(completionService);
+            }
+        } finally {
+            // Cancelling or failing stops every other worker, waiting for them so no file is
+            // still being written once the task is reported as finished
+            workers.shutdownNow();
+            ThreadUtils.awaitTerminationUninterruptibly(workers);
+        }
+    }
+
+    private void awaitCopy(CompletionService<Void> completionService) throws InterruptedException {
+        try {
+            completionService.take().get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    // Also keeps the total of files up to date with the entries found so far
+    private File nextEntry(FileTreeWalker walker) throws InterruptedException {
+        File entry = walker.next();
+        setTotalFiles(clampToInt(mFilesBeforeWalk + walker.getFoundEntries() * (long) mCopiesPerEntry));
+        return entry;
+    }
+
+    private BackgroundFileTreeWalker startWalk(List<Uri> srcs, FileTreeWalker.Order order) {
+        return startWalk(srcs, order, Collections.<File>emptyList());
+    }
+
+    /**
+     * Starts walking the sources in the background, along with a scan of their totals unless the
+     * copy options disable it. Must be followed by stopWalk().
+     * @param excludedFolders folders left out of both, with everything under them
+     */
+    private BackgroundFileTreeWalker startWalk(List<Uri> srcs, FileTreeWalker.Order order, List<File> excludedFolders) {
+        List<File> roots = toFiles(srcs);
+
+        int scanParallelism = getCopyOptions().getScanParallelism();
+        if (scanParallelism > 0) {
+            ParallelTreeScanner scanner = new ParallelTreeScanner(roots, scanParallelism);
+            scanner.setExcludedFolders(excludedFolders);
+            scanner.start();
+            mScanner = scanner;
+        }
+
+        BackgroundFileTreeWalker walker = new BackgroundFileTreeWalker(roots, order, mUnreadableEntryListener);
+        walker.setExcludedFolders(excludedFolders);
+        walker.start();
+        return walker;
+    }
+
+    /**
+     * Folders that copying srcs into dsts creates inside srcs themselves, when a destination is
+     * one of the sources or under one. Folders are listed as the walk reaches them, so walking
+     * those would copy the copy again and again.
+     */
+    private List<File> copiesInsideSources(Uri srcWD, List<Uri> srcs, List<Uri> dsts) {
+        List<File> copies = new ArrayList<>();
+        for (Uri dst : dsts) {
+            String dstPath = new File(dst.getPath()).getAbsolutePath();
+            for (Uri src : srcs) {
+                File srcEntry = new File(src.getPath());
+                String srcPath = srcEntry.getAbsolutePath();
+                if (dstPath.equals(srcPath) || dstPath.startsWith(srcPath + File.separator)) {
+                    copies.add(new File(dst.getPath(), relativePath(srcWD, srcEntry)));
                 }
+            }
+        }
+        return copies;
+    }
 
-                switch (error) {
-                    case NONE:
-                        break;
-                    case DEST_ALREADY_EXISTS:
-                        switch(errorSolution.getAction()) {
-                            case RETRY_CONTINUE:
-                                retry = true;
-                                overwrite = true;
-                                break;
-                            case IGNORE:
-                                break;
-                            case CANCEL:
-                                throw new InterruptedException("User cancelled the task");
-                        }
-                        break;
-                    case SOURCE_DOESNT_EXIST:
-                        switch(errorSolution.getAction()) {
-                            case RETRY_CONTINUE:
-                                retry = true;
-                                break;
-                            case IGNORE:
-                                break;
-                            case CANCEL:
-                                throw new InterruptedException("User cancelled the task");
-                        }
-                        break;
-                    case SOURCE_NOT_READABLE:
-                        switch(errorSolution.getAction()) {
-                            case RETRY_CONTINUE:
-                                retry = true;
-                                break;
-                            case IGNORE:
-                                break;
-                            case CANCEL:
-                                throw new InterruptedException("User cancelled the task");
-                        }
-                        break;
-                    case DEST_NOT_WRITABLE:
-                        switch(errorSolution.getAction()) {
-                            case RETRY_CONTINUE:
-                                retry = true;
-                                break;
-                            case IGNORE:
-                                break;
-                            case CANCEL:
-                                throw new InterruptedException("User cancelled the task");
-                        }
-                        break;
-                    case READ_ERROR:
-                        throw new InterruptedException("Task isn't processable due to read error");
-                    case WRITE_ERROR:
-                        throw new InterruptedException("Task isn't processable due to read error");
-                    case UNKNOWN:
-                        throw new InterruptedException("Task isn't processable due to unknown error");
-                    case AUTHENTICATION_ERROR:
-                        break;
+    private void stopWalk(BackgroundFileTreeWalker walker) {
+        walker.close();
+
+        ParallelTreeScanner scanner = mScanner;
+        if (scanner != null) {
+            scanner.close();
+            if (scanner.isFinished()) {
+                setTotalBytes(scanner.getBytes());
+            }
+            mScanner = null;
+        }
+    }
+
+    // Totals are read while the task runs, so the scan shows up in the progress before the
+    // walk gets to the entries it counted
+    @Override
+    protected int getTotalFiles() {
+        int total = super.getTotalFiles();
+        ParallelTreeScanner scanner = mScanner;
+        if (scanner == null) {
+            return total;
+        }
+        return Math.max(total, clampToInt(mFilesBeforeWalk + scanner.getEntries() * mCopiesPerEntry));
+    }
+
+    @Override
+    protected long getTotalBytes() {
+        ParallelTreeScanner scanner = mScanner;
+        if (scanner == null) {
+            return super.getTotalBytes();
+        }
+        return scanner.getBytes();
+    }
+
+    private static int clampToInt(long value) {
+        return (int) Math.min(Integer.MAX_VALUE, value);
+    }
+
+    private List<File> toFiles(List<Uri> uris) {
+        List<File> files = new ArrayList<>(uris.size());
+        for (Uri uri : uris) {
+            files.add(new File(uri.getPath()));
+        }
+        return files;
+    }
+
+    private final FileTreeWalker.OnUnreadableEntryListener mUnreadableEntryListener = new FileTreeWalker.OnUnreadableEntryListener() {
+        @Override
+        public void onUnreadableEntry(File entry) throws InterruptedException {
+            mFoundUnreadableEntries = true;
+            onError(Uri.fromFile(entry), null, FileSystemErrorType.SOURCE_NOT_READABLE);
+        }
+    };
+
+    /**
+     * @return whether the entry was copied, false if the user chose to skip it
+     */
+    private boolean copyEntry(LocalFSEntryDuplicator entryDuplicator, Uri srcWD, Uri entry, Uri dst, boolean sync) throws InterruptedException {
+        File srcEntry = new File(entry.getPath());
+        String relativePath = relativePath(srcWD, srcEntry);
+
+        File dstEntry = new File(dst.getPath(), relativePath);
+
+        if (sync) {
+            Set<String> syncedPaths = mSyncedPaths;
+            if (syncedPaths != null) {
+                syncedPaths.add(stripTrailingSeparator(relativePath));
+            }
+
+            if (isUpToDate(srcEntry, dstEntry)) {
+                if (!srcEntry.isDirectory()) {
+                    incrementProcessedBytes(srcEntry.length());
                 }
-            } while (retry);
+                incrementProcessedFiles(1);
+                return true;
+            }
+        }
 
+        setSource(entry);
+        setDest(Uri.fromFile(dstEntry));
+
+        final CopyJournal journal = mJournal;
+        final CopyManifest manifest = mManifest;
+        // Taken before copying, so a source modified while copied doesn't match its entry later
+        final long srcLength = srcEntry.length();
+        final long srcModified = srcEntry.lastModified();
+        if (journal != null && journal.isDone(relativePath, srcLength, srcModified) && dstEntry.exists()) {
+            // Already copied by a previous run of this same copy
+            if (manifest != null && !srcEntry.isDirectory()) {
+                manifest.add(new CopyManifest.Entry(relativePath, srcEntry.length(), null, false));
+            }
+            incrementProcessedBytes(srcEntry.length());
             incrementProcessedFiles(1);
-            onProgressUpdate();
+            return true;
         }
-    }
 
-    private List<Uri> expandFileList(List<Uri> srcs) throws InterruptedException {
-        List<Uri> expanded = new ArrayList<>();
-        List<Uri> unexpanded = new ArrayList<>();
+        long resumeOffset = 0;
+        if (journal != null && !srcEntry.isDirectory() && dstEntry.exists()) {
+            resumeOffset = journal.getResumeOffset(relativePath, srcLength, srcModified);
+        }
 
-        unexpanded.addAll(srcs);
+        boolean retry = false;
+        boolean overwrite = sync || resumeOffset > 0;
 
-        for(int i = 0; i < unexpanded.size(); i++) {
-            Uri entry = unexpanded.get(i);
-            try {
-                File fileEntry = new File(entry.getPath());
+        Solution errorSolution = null;
+        FileSystemErrorType error = FileSystemErrorType.NONE;
 
-                if (!FileUtils.isSymlink(fileEntry)) {
-                    expanded.add(entry);
+        do {
+            try {
+                StreamDuplicator.OnDuplicationProgressListener checkpointListener = null;
+                if (journal != null) {
+                    checkpointListener = new CheckpointListener(journal, relativePath, dstEntry, srcLength, srcModified, resumeOffset);
+                }
 
-                    if (fileEntry.isDirectory()) {
-                        File[] entryArray = fileEntry.listFiles();
+                byte[] digest;
+                if (sync) {
+                    digest = entryDuplicator.updateEntry(srcEntry, dstEntry, mDeltaListener);
+                } else {
+                    digest = entryDuplicator.copyEntry(srcEntry, dstEntry, overwrite, resumeOffset, checkpointListener);
+                }
+                if (manifest != null && digest != null) {
+                    boolean verified = getCopyOptions().getVerification() == CopyOptions.Verification.VERIFY;
+                    manifest.add(new CopyManifest.Entry(relativePath, srcEntry.length(), ContentDigest.toHex(digest), verified));
+                }
+                if (journal != null) {
+                    if (srcEntry.isDirectory() || getCopyOptions().getDurability() == CopyOptions.Durability.PER_FILE) {
+                        journal.markDone(relativePath, srcLength, srcModified);
+                    } else {
+                        markDoneOnceSynced(entryDuplicator, journal, new UnsyncedFile(relativePath, dstEntry, srcLength, srcModified));
+                    }
+                }
+                incrementProcessedBytes(resumeOffset);
+                if (sync && !srcEntry.isDirectory()) {
+                    setModificationTime(dstEntry, srcEntry.lastModified());
+                }
+                if (!srcEntry.isDirectory() && getCopyOptions().getDurability() == CopyOptions.Durability.BATCHED) {
+                    mPendingSyncs.add(dstEntry);
+                }
+                retry = false;
+                error = FileSystemErrorType.NONE;
+            } catch (LocalFSEntryDuplicator.FileCopyFailedException e) {
+                Throwable cause = e.getCause();
 
-                        if (entryArray.length != 0) {
-                            List<File> dirEntries = Arrays.asList(entryArray);
+                if (cause instanceof FileNotReadable) {
+                    error = FileSystemErrorType.SOURCE_NOT_READABLE;
+                    errorSolution = onError(entry, Uri.fromFile(dstEntry), error);
+                } else if (cause instanceof FileNotWritable) {
+                    error = FileSystemErrorType.DEST_NOT_WRITABLE;
+                    errorSolution = onError(entry, Uri.fromFile(dstEntry), error);
+                } else if (cause instanceof StreamDuplicationFailedException) {
+                    Throwable subCause = cause.getCause();
 
-                            for(File childEntry : dirEntries) {
-                                unexpanded.add(Uri.fromFile(childEntry));
-                            }
-                        }
+                    if (subCause instanceof StreamReadFailureException) {
+                        error = FileSystemErrorType.READ_ERROR;
+                        errorSolution = onError(entry, Uri.fromFile(dstEntry), error);
+                    } else {
+                        error = FileSystemErrorType.WRITE_ERROR;
+                        errorSolution = onError(entry, Uri.fromFile(dstEntry), error);
                     }
+                } else if (cause instanceof FileNotFoundException) {
+                    error = FileSystemErrorType.SOURCE_DOESNT_EXIST;
+                    errorSolution = onError(entry, Uri.fromFile(dstEntry), error);
+                } else if (cause instanceof FileAlreadyExists) {
+                    error = FileSystemErrorType.DEST_ALREADY_EXISTS;
+                    errorSolution = onError(entry, Uri.fromFile(dstEntry), error);
+                } else if (cause instanceof ChecksumMismatch) {
+                    error = FileSystemErrorType.CHECKSUM_MISMATCH;
+                    errorSolution = onError(entry, Uri.fromFile(dstEntry), error);
                 }
-            } catch (IOException e){
-                onError(entry, null, FileSystemErrorType.SOURCE_NOT_READABLE);
             }
+
+            switch (error) {
+                case NONE:
+                    break;
+                case DEST_ALREADY_EXISTS:
+                    switch(errorSolution.getAction()) {
+                        case RETRY_CONTINUE:
+                            retry = true;
+                            overwrite = true;
+                            break;
+                        case IGNORE:
+                            break;
+                        case CANCEL:
+                            throw new InterruptedException("User cancelled the task");
+                    }
+                    break;
+                case SOURCE_DOESNT_EXIST:
+                    switch(errorSolution.getAction()) {
+                        case RETRY_CONTINUE:
+                            retry = true;
+                            break;
+                        case IGNORE:
+                            break;
+                        case CANCEL:
+                            throw new InterruptedException("User cancelled the task");
+                    }
+                    break;
+                case SOURCE_NOT_READABLE:
+                    switch(errorSolution.getAction()) {
+                        case RETRY_CONTINUE:
+                            retry = true;
+                            break;
+                        case IGNORE:
+                            break;
+                        case CANCEL:
+                            throw new InterruptedException("User cancelled the task");
+                    }
+                    break;
+                case DEST_NOT_WRITABLE:
+                    switch(errorSolution.getAction()) {
+                        case RETRY_CONTINUE:
+                            retry = true;
+                            break;
+                        case IGNORE:
+                            break;
+                        case CANCEL:
+                            throw new InterruptedException("User cancelled the task");
+                    }
+                    break;
+                case READ_ERROR:
+                    throw new InterruptedException("Task isn't processable due to read error");
+                case WRITE_ERROR:
+                    throw new InterruptedException("Task isn't processable due to read error");
+                case CHECKSUM_MISMATCH:
+                    switch(errorSolution.getAction()) {
+                        case RETRY_CONTINUE:
+                            // Copy the whole file again, whatever was resumed could be the culprit
+                            retry = true;
+                            overwrite = true;
+                            resumeOffset = 0;
+                            break;
+                        case IGNORE:
+                            break;
+                        case CANCEL:
+                            throw new InterruptedException("User cancelled the task");
+                    }
+                    break;
+                case UNKNOWN:
+                    throw new InterruptedException("Task isn't processable due to unknown error");
+                case AUTHENTICATION_ERROR:
+                    break;
+            }
+        } while (retry);
+
+        incrementProcessedFiles(1);
+        return error == FileSystemErrorType.NONE;
+    }
+
+    // Copied file whose done entry can't be written until its data is synced
+    private static class UnsyncedFile {
+        final String mRelativePath;
+        final File mDstEntry;
+        final long mSrcLength;
+        final long mSrcModified;
+
+        UnsyncedFile(String relativePath, File dstEntry, long srcLength, long srcModified) {
+            mRelativePath = relativePath;
+            mDstEntry = dstEntry;
+            mSrcLength = srcLength;
+            mSrcModified = srcModified;
+        }
+    }
+
+    /**
+     * A done entry makes the next run skip the file, so it's only written once the file is synced.
+     * Files are synced in batches of CHECKPOINT_INTERVAL_BYTES or MAX_UNSYNCED_DONE files, so
+     * copies of many small files don't pay a sync each. A crash loses the batch in progress, whose
+     * files are just copied again.
+     */
+    private void markDoneOnceSynced(LocalFSEntryDuplicator entryDuplicator, CopyJournal journal, UnsyncedFile file) {
+        List<UnsyncedFile> batch = null;
+        synchronized (mUnsyncedDone) {
+            mUnsyncedDone.add(file);
+            mUnsyncedDoneBytes += file.mSrcLength;
+            if (mUnsyncedDoneBytes >= CopyJournal.CHECKPOINT_INTERVAL_BYTES || mUnsyncedDone.size() >= MAX_UNSYNCED_DONE) {
+                batch = takeUnsyncedDone();
+            }
+        }
+
+        if (batch != null) {
+            markSyncedDone(entryDuplicator, journal, batch);
+        }
+    }
+
+    private List<UnsyncedFile> takeUnsyncedDone() {
+        synchronized (mUnsyncedDone) {
+            List<UnsyncedFile> batch = new ArrayList<>(mUnsyncedDone);
+            mUnsyncedDone.clear();
+            mUnsyncedDoneBytes = 0;
+            return batch;
+        }
+    }
+
+    private void markSyncedDone(LocalFSEntryDuplicator entryDuplicator, CopyJournal journal, List<UnsyncedFile> batch) {
+        for (UnsyncedFile file : batch) {
+            try {
+                entryDuplicator.syncWrittenFile(file.mDstEntry);
+            } catch (IOException e) {
+                // Left out of the journal, so the next run copies it again
+                Log.w(TAG, "Couldn't sync " + file.mDstEntry + " for the journal", e);
+                continue;
+            }
+
+            // Already synced, BATCHED durability needn't do it again
+            mPendingSyncs.remove(file.mDstEntry);
+            journal.markDone(file.mRelativePath, file.mSrcLength, file.mSrcModified);
         }
-        return expanded;
     }
 
+    // Saves in the journal how far the current file has been copied, every
+    // CHECKPOINT_INTERVAL_BYTES. The destination is synced first, so the journal never claims
+    // data that could still be lost with the page cache.
+    private static class CheckpointListener implements StreamDuplicator.OnDuplicationProgressListener {
+        private final CopyJournal mJournal;
+        private final String mRelativePath;
+        private final File mDstEntry;
+        private final long mSrcLength;
+        private final long mSrcModified;
+        private long mOffset;
+        private long mSavedOffset;
+
+        CheckpointListener(CopyJournal journal, String relativePath, File dstEntry, long srcLength, long srcModified, long startOffset) {
+            mJournal = journal;
+            mRelativePath = relativePath;
+            mDstEntry = dstEntry;
+            mSrcLength = srcLength;
+            mSrcModified = srcModified;
+            mOffset = startOffset;
+            mSavedOffset = startOffset;
+        }
+
+        @Override
+        public void onDuplicationProgress(int bytesCopied) {
+            mOffset += bytesCopied;
+            if (mOffset - mSavedOffset < CopyJournal.CHECKPOINT_INTERVAL_BYTES) {
+                return;
+            }
+
+            // Syncing any descriptor of the file flushes everything written to it, whoever wrote it
+            FileInputStream dst = null;
+            try {
+                dst = new FileInputStream(mDstEntry);
+                FileUtils.dataSync(dst.getFD());
+            } catch (IOException e) {
+                // Without the sync the offset can't be trusted, the next interval tries again
+                Log.w(TAG, "Couldn't sync " + mDstEntry.getPath() + " for its checkpoint", e);
+                return;
+            } finally {
+                FileUtils.closeSilently(dst);
+            }
+
+            mJournal.checkpoint(mRelativePath, mOffset, mSrcLength, mSrcModified);
+            mSavedOffset = mOffset;
+        }
+    }
+
+    /**
+     * Renames the entries into dst when they are on its same file system. The rest are copied and
+     * then deleted file by file, each source file going away as soon as its copy is safely
+     * stored, so only one file is ever duplicated instead of the whole tree.
+     */
     @Override
     protected void move(Uri srcWD, List<Uri> srcs, Uri dst) throws InterruptedException {
         setTotalFiles(srcs.size());
+
+        long dstDevice = FileUtils.getDeviceId(new File(dst.getPath()));
+        List<Uri> crossVolume = new ArrayList<>();
+
         for (Uri src : srcs) {
             File srcFile = new File(src.getPath());
-            String relativePath = new File(srcWD.getPath())
-                    .toURI()
-                    .relativize(srcFile.toURI())
-                    .getPath();
-            File dstFile = new File(dst.getPath(), relativePath);
-            rename(srcFile, dstFile);
+            File dstFile = new File(dst.getPath(), relativePath(srcWD, srcFile));
+            long srcDevice = FileUtils.getDeviceId(srcFile);
+
+            setSource(src);
+            setDest(Uri.fromFile(dstFile));
+
+            if (srcDevice != -1 && dstDevice != -1) {
+                if (srcDevice != dstDevice) {
+                    crossVolume.add(src);
+                    continue;
+                }
+                rename(srcFile, dstFile);
+            } else if (!timedRename(srcFile, dstFile)) {
+                // Without device ids, a failed rename is the only hint of another file system
+                crossVolume.add(src);
+                continue;
+            }
+
             incrementProcessedFiles(1);
         }
+
+        if (!crossVolume.isEmpty()) {
+            moveAcrossVolumes(srcWD, crossVolume, dst);
+        }
+    }
+
+    private void moveAcrossVolumes(Uri srcWD, List<Uri> srcs, Uri dst) throws InterruptedException {
+        LocalFSEntryDuplicator entryDuplicator = newEntryDuplicator();
+
+        // The walk counts srcs again, along with everything under them
+        mFilesBeforeWalk = getTotalFiles() - srcs.size();
+
+        startManifest();
+
+        // Only the folders are kept, to delete them once the walk is done with their contents
+        List<File> srcDirs = new ArrayList<>();
+        BackgroundFileTreeWalker walker = startWalk(srcs, FileTreeWalker.Order.PRE_ORDER, copiesInsideSources(srcWD, srcs, Collections.singletonList(dst)));
+        try {
+            File srcEntry;
+            while ((srcEntry = nextEntry(walker)) != null) {
+                Uri entry = Uri.fromFile(srcEntry);
+
+                if (srcEntry.isDirectory()) {
+                    // Existing folders are merged into, so it's removed as long as it ends up empty
+                    copyEntry(entryDuplicator, srcWD, entry, dst, false);
+                    srcDirs.add(srcEntry);
+                    continue;
+                }
+
+                File dstEntry = new File(dst.getPath(), relativePath(srcWD, srcEntry));
+                if (!copyEntry(entryDuplicator, srcWD, entry, dst, false)) {
+                    continue;
+                }
+
+                // The source is about to be the only copy gone, whatever the durability policy
+                mPendingSyncs.remove(dstEntry);
+                if (getCopyOptions().getDurability() == CopyOptions.Durability.PER_FILE || syncWrittenFile(entryDuplicator, dstEntry)) {
+                    deleteMovedEntry(entry);
+                }
+            }
+        } finally {
+            stopWalk(walker);
+        }
+
+        // Folders are listed before their contents, so backwards each one is already empty
+        for (int i = srcDirs.size() - 1; i >= 0; i--) {
+            File srcDir = srcDirs.get(i);
+            if (!timedDelete(srcDir)) {
+                Log.w(TAG, "Left " + srcDir + " behind, some of its entries weren't moved");
+            }
+        }
+    }
+
+    private void deleteMovedEntry(Uri entry) throws InterruptedException {
+        File srcEntry = new File(entry.getPath());
+
+        while (!timedDelete(srcEntry) && srcEntry.exists()) {
+            Solution solution = onError(entry, null, FileSystemErrorType.SOURCE_NOT_WRITABLE);
+            switch (solution.getAction()) {
+                case RETRY_CONTINUE:
+                    break;
+                case IGNORE:
+                    return;
+                case CANCEL:
+                    throw new InterruptedException("User cancelled the task");
+            }
+        }
     }
 
     @Override
@@ -223,7 +1081,7 @@ public class LocalFileSystemTask extends FileSystemTask {
         do {
             retry = false;
 
-            if(!srcFile.renameTo(dstFile)) {
+            if(!timedRename(srcFile, dstFile)) {
                 FileSystemErrorType errorType;
                 if (!srcFile.getParentFile().canWrite()) {
                     errorType = FileSystemErrorType.SOURCE_NOT_WRITABLE;
@@ -277,26 +1135,31 @@ public class LocalFileSystemTask extends FileSystemTask {
 
     @Override
     protected void remove(Uri srcWD, List<Uri> srcs) throws InterruptedException {
-        List<Uri> expanded = expandFileList(srcs);
-        Collections.reverse(expanded);
+        BackgroundFileTreeWalker walker = startWalk(srcs, FileTreeWalker.Order.POST_ORDER);
 
-        setTotalFiles(expanded.size());
+        try {
+            File fileEntry;
+            while ((fileEntry = nextEntry(walker)) != null) {
+                Uri entry = Uri.fromFile(fileEntry);
 
-        for (Uri entry : expanded) {
-            File fileEntry = new File(entry.getPath());
+                setSource(entry);
 
-            setSource(entry);
+                // Counted so the progress can be weighted by the scanned bytes
+                long length = fileEntry.isFile() ? fileEntry.length() : 0;
 
-            if (!fileEntry.delete()) {
-                if (!fileEntry.exists()) {
-                    onError(entry, null, FileSystemErrorType.SOURCE_DOESNT_EXIST);
-                } else {
-                    onError(entry, null, FileSystemErrorType.UNKNOWN);
+                if (!timedDelete(fileEntry)) {
+                    if (!fileEntry.exists()) {
+                        onError(entry, null, FileSystemErrorType.SOURCE_DOESNT_EXIST);
+                    } else {
+                        onError(entry, null, FileSystemErrorType.UNKNOWN);
+                    }
                 }
-            }
 
-            incrementProcessedFiles(1);
-            onProgressUpdate();
+                incrementProcessedBytes(length);
+                incrementProcessedFiles(1);
+            }
+        } finally {
+            stopWalk(walker);
         }
     }
 
@@ -305,12 +1168,36 @@ public class LocalFileSystemTask extends FileSystemTask {
         setTotalFiles(1);
         File newDir = new File(folderUri.getPath());
 
-        if (!newDir.exists() && !newDir.mkdir()) {
+        if (!newDir.exists() && !timedMkdir(newDir)) {
             onError(null, folderUri, FileSystemErrorType.DEST_NOT_WRITABLE);
         }
 
         incrementProcessedFiles(1);
-        onProgressUpdate();
+    }
+
+    // File system calls timed into the I/O stats and the trace of the task
+    private boolean timedDelete(File entry) {
+        long start = System.nanoTime();
+        boolean deleted = entry.delete();
+        getMetrics().addIo(IoStats.Operation.DELETE, System.nanoTime() - start);
+        getTraceRecorder().complete(TRACE_IO, "delete", start, "path", entry.getPath());
+        return deleted;
+    }
+
+    private boolean timedRename(File srcFile, File dstFile) {
+        long start = System.nanoTime();
+        boolean renamed = srcFile.renameTo(dstFile);
+        getMetrics().addIo(IoStats.Operation.RENAME, System.nanoTime() - start);
+        getTraceRecorder().complete(TRACE_IO, "rename", start, "path", srcFile.getPath());
+        return renamed;
+    }
+
+    private boolean timedMkdir(File dir) {
+        long start = System.nanoTime();
+        boolean created = dir.mkdir();
+        getMetrics().addIo(IoStats.Operation.MKDIR, System.nanoTime() - start);
+        getTraceRecorder().complete(TRACE_IO, "mkdir", start, "path", dir.getPath());
+        return created;
     }
 
     @Override
@@ -6,14 +6,19 @@ import android.net.Uri;
  * Holds information about the progress of a FileSystemTask
  */
 public class ProgressInfo {
-    private int mTotalBytes;
+    private long mTotalBytes;
     private int mProcessedFiles;
-    private int mProcessedBytes;
+    private long mProcessedBytes;
     private int mTotalFiles;
     private Uri mDest;
     private Uri mSource;
+    private long mDeltaBytes;
+    private long mSavedBytes;
+    private long mBytesPerSecond;
+    private double mFilesPerSecond;
+    private long mEtaMillis = ThroughputMeter.UNKNOWN_ETA;
 
-    public int getTotalBytes() {
+    public long getTotalBytes() {
         return mTotalBytes;
     }
 
@@ -21,7 +26,7 @@ public class ProgressInfo {
         return mProcessedFiles;
     }
 
-    public int getProcessedBytes() {
+    public long getProcessedBytes() {
         return mProcessedBytes;
     }
 
@@ -37,6 +42,54 @@ public class ProgressInfo {
         return mSource;
     }
 
+    /**
+     * @return bytes written by delta updates, which rewrite only the changed blocks of a file
+     */
+    public long getDeltaBytes() {
+        return mDeltaBytes;
+    }
+
+    /**
+     * @return bytes delta updates found already up to date and didn't have to write
+     */
+    public long getSavedBytes() {
+        return mSavedBytes;
+    }
+
+    /**
+     * @return smoothed throughput of the task
+     */
+    public long getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    public double getFilesPerSecond() {
+        return mFilesPerSecond;
+    }
+
+    /**
+     * @return estimated time until the task finishes, or ThroughputMeter.UNKNOWN_ETA
+     */
+    public long getEtaMillis() {
+        return mEtaMillis;
+    }
+
+    /**
+     * @return done fraction of the task, between 0 and 1. It's weighted by bytes when the total
+     *         bytes are known, so a big file counts for more than a small one, and by files
+     *         otherwise.
+     */
+    public float getProgress() {
+        float progress;
+        if (mTotalBytes > 0) {
+            progress = (float) mProcessedBytes / mTotalBytes;
+        } else if (mTotalFiles > 0) {
+            progress = (float) mProcessedFiles / mTotalFiles;
+        } else {
+            progress = 0;
+        }
+        return Math.min(1, progress);
+    }
 
     public ProgressInfo(ProgressInfo progressInfo) {
         mSource = progressInfo.mSource;
@@ -45,6 +98,11 @@ public class ProgressInfo {
         mProcessedFiles = progressInfo.mProcessedFiles;
         mTotalBytes = progressInfo.mTotalBytes;
         mTotalFiles = progressInfo.mTotalFiles;
+        mDeltaBytes = progressInfo.mDeltaBytes;
+        mSavedBytes = progressInfo.mSavedBytes;
+        mBytesPerSecond = progressInfo.mBytesPerSecond;
+        mFilesPerSecond = progressInfo.mFilesPerSecond;
+        mEtaMillis = progressInfo.mEtaMillis;
     }
 
     public ProgressInfo(Builder builder) {
@@ -54,6 +112,11 @@ public class ProgressInfo {
         mTotalBytes = builder.getTotalBytes();
         mProcessedFiles = builder.getProcessedFiles();
         mProcessedBytes = builder.getProcessedBytes();
+        mDeltaBytes = builder.getDeltaBytes();
+        mSavedBytes = builder.getSavedBytes();
+        mBytesPerSecond = builder.getBytesPerSecond();
+        mFilesPerSecond = builder.getFilesPerSecond();
+        mEtaMillis = builder.getEtaMillis();
     }
 
     public static class Builder {
@@ -61,8 +124,13 @@ public class ProgressInfo {
         private Uri mDest;
         private int mTotalFiles;
         private int mProcessedFiles;
-        private int mTotalBytes;
-        private int mProcessedBytes;
+        private long mTotalBytes;
+        private long mProcessedBytes;
+        private long mDeltaBytes;
+        private long mSavedBytes;
+        private long mBytesPerSecond;
+        private double mFilesPerSecond;
+        private long mEtaMillis = ThroughputMeter.UNKNOWN_ETA;
 
         public Builder() { }
 
@@ -73,6 +141,11 @@ public class ProgressInfo {
             mTotalFiles = builder.mTotalFiles;
             mProcessedBytes = builder.mProcessedBytes;
             mProcessedFiles = builder.mProcessedFiles;
+            mDeltaBytes = builder.mDeltaBytes;
+            mSavedBytes = builder.mSavedBytes;
+            mBytesPerSecond = builder.mBytesPerSecond;
+            mFilesPerSecond = builder.mFilesPerSecond;
+            mEtaMillis = builder.mEtaMillis;
         }
 
         public Builder setSource(Uri source) {
@@ -109,24 +182,69 @@ public class ProgressInfo {
             return this;
         }
 
-        public int getTotalBytes() {
+        public long getTotalBytes() {
             return mTotalBytes;
         }
 
-        public Builder setTotalBytes(int totalBytes) {
+        public Builder setTotalBytes(long totalBytes) {
             mTotalBytes = totalBytes;
             return this;
         }
 
-        public int getProcessedBytes() {
+        public long getProcessedBytes() {
             return mProcessedBytes;
         }
 
-        public Builder setProcessedBytes(int processedBytes) {
+        public Builder setProcessedBytes(long processedBytes) {
             mProcessedBytes = processedBytes;
             return this;
         }
 
+        public long getDeltaBytes() {
+            return mDeltaBytes;
+        }
+
+        public Builder setDeltaBytes(long deltaBytes) {
+            mDeltaBytes = deltaBytes;
+            return this;
+        }
+
+        public long getSavedBytes() {
+            return mSavedBytes;
+        }
+
+        public Builder setSavedBytes(long savedBytes) {
+            mSavedBytes = savedBytes;
+            return this;
+        }
+
+        public long getBytesPerSecond() {
+            return mBytesPerSecond;
+        }
+
+        public Builder setBytesPerSecond(long bytesPerSecond) {
+            mBytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
+        public double getFilesPerSecond() {
+            return mFilesPerSecond;
+        }
+
+        public Builder setFilesPerSecond(double filesPerSecond) {
+            mFilesPerSecond = filesPerSecond;
+            return this;
+        }
+
+        public long getEtaMillis() {
+            return mEtaMillis;
+        }
+
+        public Builder setEtaMillis(long etaMillis) {
+            mEtaMillis = etaMillis;
+            return this;
+        }
+
         public ProgressInfo create() {
             return new ProgressInfo(this);
         }
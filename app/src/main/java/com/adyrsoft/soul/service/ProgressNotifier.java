@@ -2,88 +2,65 @@ package com.adyrsoft.soul.service;
 
 import android.os.Handler;
 import android.support.annotation.NonNull;
-import android.util.Pair;
 
-import java.io.File;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Created by Adrian on 17/06/2016.
+ * Reports the progress of running tasks to a listener on the UI thread. Everything that happened
+ * since the last dispatch goes in a single batch, posted at most once per interval and never
+ * while the previous batch is still waiting for the UI thread. The interval grows with the number
+ * of subscribers, each of which makes a batch costlier to handle, and is longest while nobody is
+ * subscribed, as subscribers are only expected while visible. With no task to report on, the
+ * notifier sleeps until one is tracked. Progress updates of a task replace each other, but every
+ * finished task is reported.
  */
 public class ProgressNotifier extends ProgressListener {
-    private enum MessageType {
-        TASK_UPDATE,
-        TASK_FINISHED
-    }
-
-    private static class Message {
-        private MessageType mType;
-        private ProgressInfo mProgressInfo;
-        private TaskResult mTaskResult;
-        private Object mTaskOutput;
-
-        public MessageType getType() {
-            return mType;
-        }
-
-        public void setType(MessageType type) {
-            mType = type;
-        }
-
-        public ProgressInfo getProgressInfo() {
-            return mProgressInfo;
-        }
-
-        public void setProgressInfo(ProgressInfo progressInfo) {
+    // Interval for a single subscriber, a few frames long
+    private static final long MIN_INTERVAL_MSEC = 100;
+    private static final long MAX_INTERVAL_MSEC = 1000;
+    // Progress is only kept fresh for whoever subscribes next
+    private static final long UNWATCHED_INTERVAL_MSEC = 2000;
+
+    private static class FinishedTask {
+        private final FileSystemTask mTask;
+        private final ProgressInfo mProgressInfo;
+        private final TaskResult mTaskResult;
+        private final Object mTaskOutput;
+
+        FinishedTask(FileSystemTask task, ProgressInfo progressInfo, TaskResult taskResult, Object taskOutput) {
+            mTask = task;
             mProgressInfo = progressInfo;
-        }
-
-        public TaskResult getTaskResult() {
-            return mTaskResult;
-        }
-
-        public void setTaskResult(TaskResult taskResult) {
             mTaskResult = taskResult;
-        }
-
-        public Object getTaskOutput() {
-            return mTaskOutput;
-        }
-
-        public void setTaskOutput(Object taskOutput) {
             mTaskOutput = taskOutput;
         }
     }
 
-    private static final long INTERVAL_MSEC = (long)(1000 / (float)2);
-    private HashMap<FileSystemTask, Message> mUpdates = new HashMap<>();
-    private Thread mThread;
+    private final LinkedHashMap<FileSystemTask, ProgressInfo> mUpdates = new LinkedHashMap<>();
+    private final List<FinishedTask> mFinishedTasks = new ArrayList<>();
+    // Tasks whose progress is pulled on every dispatch while they work
+    private final LinkedHashSet<FileSystemTask> mTrackedTasks = new LinkedHashSet<>();
+    private int mSubscribers;
+    private boolean mBatchPosted;
+    private long mLastDispatchMillis;
     private boolean mShouldStop;
+    private Thread mThread;
     private TaskListener mListener;
     private Handler mUIHandler;
 
     private Runnable mMainLoop = new Runnable() {
         @Override
         public void run() {
-            while (!mShouldStop) {
-                long iterStartTime = System.currentTimeMillis();
-
-                dispatchLoop();
-
-                long elapsedTime = System.currentTimeMillis() - iterStartTime;
-                while (elapsedTime < INTERVAL_MSEC && !mShouldStop) {
-                    try {
-                        Thread.sleep(INTERVAL_MSEC - elapsedTime);
-                        elapsedTime = System.currentTimeMillis() - iterStartTime;
-                    } catch (InterruptedException e) {
-                        mShouldStop = true;
-                    }
+            try {
+                while (awaitNextDispatch()) {
+                    dispatch();
                 }
+            } catch (InterruptedException e) {
+                // Stopped
             }
         }
     };
@@ -91,6 +68,8 @@ public class ProgressNotifier extends ProgressListener {
     public ProgressNotifier(@NonNull Handler uiHandler, TaskListener taskListener) {
         mUIHandler = uiHandler;
         mListener = taskListener;
+        // The first dispatch doesn't have to wait
+        mLastDispatchMillis = nowMillis() - UNWATCHED_INTERVAL_MSEC;
     }
 
     @Override
@@ -104,66 +83,135 @@ public class ProgressNotifier extends ProgressListener {
     }
 
     public synchronized void notifyTaskUpdate(FileSystemTask task, ProgressInfo info) {
-        Message msg = new Message();
-        msg.setType(MessageType.TASK_UPDATE);
-        msg.setProgressInfo(info);
-        mUpdates.put(task, msg);
+        mUpdates.put(task, info);
+        notifyAll();
+    }
+
+    /**
+     * Reports the progress of the task on every dispatch while it's working, until it finishes.
+     * The task itself never pushes its progress, so its workers don't have to stop for it.
+     */
+    public synchronized void track(FileSystemTask task) {
+        mTrackedTasks.add(task);
+        notifyAll();
     }
 
     public synchronized void notifyTaskFinished(FileSystemTask task, TaskResult result, Object output) {
-        Message msg = new Message();
-        msg.setType(MessageType.TASK_FINISHED);
-        msg.setTaskResult(result);
-        msg.setTaskOutput(output);
-        mUpdates.put(task, msg);
+        mTrackedTasks.remove(task);
+        mUpdates.remove(task);
+        // Comes with its last progress, so listeners see where it ended
+        mFinishedTasks.add(new FinishedTask(task, task.getProgressInfo(), result, output));
+        notifyAll();
+    }
+
+    /**
+     * @param subscribers number of clients listening to the progress, which are expected to only
+     *                    listen while they are visible
+     */
+    public synchronized void setSubscribers(int subscribers) {
+        mSubscribers = subscribers;
+        notifyAll();
     }
 
     public void start() {
         if (mThread == null || !mThread.isAlive()) {
+            synchronized (this) {
+                mShouldStop = false;
+            }
             mThread = new Thread(mMainLoop);
             mThread.start();
         }
     }
 
-    private synchronized void dispatchLoop() {
-        HashSet<Map.Entry<FileSystemTask, Message>> safeCopy = new HashSet<>(mUpdates.entrySet());
-
-        for(Map.Entry<FileSystemTask, Message> entry : safeCopy) {
-            final FileSystemTask task = entry.getKey();
-            final Message msg = entry.getValue();
-
-            mUIHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    switch(msg.getType()) {
-                        case TASK_UPDATE:
-                            mListener.onProgressUpdate(task, msg.getProgressInfo());
-                            break;
-                        case TASK_FINISHED:
-                            mListener.onTaskFinished(task, msg.getTaskResult(), msg.getTaskOutput());
-                            break;
-                    }
+    // Sleeps while there's nothing to report, and then until the interval since the last
+    // dispatch is over. Returns false once stopped.
+    private synchronized boolean awaitNextDispatch() throws InterruptedException {
+        while (!mShouldStop && mTrackedTasks.isEmpty() && mUpdates.isEmpty() && mFinishedTasks.isEmpty()) {
+            wait();
+        }
+
+        long delay = mLastDispatchMillis + getIntervalMillis() - nowMillis();
+        while (!mShouldStop && delay > 0) {
+            wait(delay);
+            delay = mLastDispatchMillis + getIntervalMillis() - nowMillis();
+        }
+
+        return !mShouldStop;
+    }
+
+    private long getIntervalMillis() {
+        if (mSubscribers == 0) {
+            return UNWATCHED_INTERVAL_MSEC;
+        }
+        return Math.min(MAX_INTERVAL_MSEC, MIN_INTERVAL_MSEC * mSubscribers);
+    }
+
+    private void dispatch() {
+        final LinkedHashMap<FileSystemTask, ProgressInfo> updates;
+        final List<FinishedTask> finishedTasks;
+
+        synchronized (this) {
+            mLastDispatchMillis = nowMillis();
+
+            // The UI thread is behind, everything keeps piling up for the next batch
+            if (mBatchPosted) {
+                return;
+            }
+
+            for (FileSystemTask task : mTrackedTasks) {
+                if (task.getState() == FileSystemTask.State.WORKING) {
+                    mUpdates.put(task, task.getProgressInfo());
                 }
-            });
+            }
 
-            mUpdates.remove(task);
+            if (mUpdates.isEmpty() && mFinishedTasks.isEmpty()) {
+                return;
+            }
+
+            updates = new LinkedHashMap<>(mUpdates);
+            finishedTasks = new ArrayList<>(mFinishedTasks);
+            mUpdates.clear();
+            mFinishedTasks.clear();
+            mBatchPosted = true;
         }
+
+        mUIHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ProgressNotifier.this) {
+                    mBatchPosted = false;
+                }
+
+                for (Map.Entry<FileSystemTask, ProgressInfo> update : updates.entrySet()) {
+                    mListener.onProgressUpdate(update.getKey(), update.getValue());
+                }
+
+                for (FinishedTask finished : finishedTasks) {
+                    mListener.onProgressUpdate(finished.mTask, finished.mProgressInfo);
+                    mListener.onTaskFinished(finished.mTask, finished.mTaskResult, finished.mTaskOutput);
+                }
+            }
+        });
+    }
+
+    private static long nowMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
     }
 
     public void stop() {
+        synchronized (this) {
+            mShouldStop = true;
+            notifyAll();
+        }
+
         if (mThread != null && mThread.isAlive()) {
             mThread.interrupt();
-            mShouldStop = true;
         }
     }
 
     public void awaitTermination(long time, TimeUnit unit) throws InterruptedException {
-        long requestTime = System.currentTimeMillis();
-        long waitTime = time * unit.toMillis(time);
-        long elapsedTime = 0;
-        do {
-            Thread.sleep(waitTime - elapsedTime);
-            elapsedTime = System.currentTimeMillis() - requestTime;
-        } while(mThread.isAlive() && elapsedTime < waitTime);
+        if (mThread != null) {
+            mThread.join(unit.toMillis(time));
+        }
     }
 }
@@ -0,0 +1,140 @@
+package com.adyrsoft.soul.service;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures where the time of a FileSystemTask goes, so the cost of options like preallocation or
+ * the durability policy can be told apart from the copy itself. Safe to update from several
+ * worker threads at once.
+ */
+public class TaskMetrics {
+    private final AtomicLong mStartNanos = new AtomicLong();
+    private final AtomicLong mEndNanos = new AtomicLong();
+    private final AtomicLong mPreallocateNanos = new AtomicLong();
+    private final AtomicLong mPreallocatedFiles = new AtomicLong();
+    private final AtomicLong mSyncNanos = new AtomicLong();
+    private final AtomicLong mSyncedFiles = new AtomicLong();
+    private final AtomicLong mWriteBehindNanos = new AtomicLong();
+    private final AtomicLong mWriteBehindFlushes = new AtomicLong();
+    private final Map<CopyOptions.CopyStrategy, AtomicLong> mStrategyFiles = new EnumMap<>(CopyOptions.CopyStrategy.class);
+    private final IoStats mIoStats = new IoStats();
+
+    public TaskMetrics() {
+        for (CopyOptions.CopyStrategy strategy : CopyOptions.CopyStrategy.values()) {
+            mStrategyFiles.put(strategy, new AtomicLong());
+        }
+    }
+
+    void onStarted(long nowNanos) {
+        mStartNanos.set(nowNanos);
+    }
+
+    void onFinished(long nowNanos) {
+        mEndNanos.set(nowNanos);
+    }
+
+    void addPreallocation(long nanos) {
+        mPreallocateNanos.addAndGet(nanos);
+        mPreallocatedFiles.incrementAndGet();
+    }
+
+    void addSync(long nanos) {
+        mSyncNanos.addAndGet(nanos);
+        mSyncedFiles.incrementAndGet();
+        mIoStats.record(IoStats.Operation.SYNC, nanos);
+    }
+
+    void addWriteBehind(long nanos) {
+        mWriteBehindNanos.addAndGet(nanos);
+        mWriteBehindFlushes.incrementAndGet();
+    }
+
+    void addStrategyUse(CopyOptions.CopyStrategy strategy) {
+        mStrategyFiles.get(strategy).incrementAndGet();
+    }
+
+    void addIo(IoStats.Operation operation, long nanos) {
+        mIoStats.record(operation, nanos);
+    }
+
+    void addIo(IoStats.Operation operation, long nanos, long bytes) {
+        mIoStats.record(operation, nanos, bytes);
+    }
+
+    /**
+     * @return time the task has been running, or ran if it's finished
+     */
+    public long getElapsedNanos() {
+        long start = mStartNanos.get();
+        if (start == 0) {
+            return 0;
+        }
+
+        long end = mEndNanos.get();
+        return (end != 0 ? end : System.nanoTime()) - start;
+    }
+
+    public long getPreallocateNanos() {
+        return mPreallocateNanos.get();
+    }
+
+    public long getPreallocatedFiles() {
+        return mPreallocatedFiles.get();
+    }
+
+    public long getSyncNanos() {
+        return mSyncNanos.get();
+    }
+
+    public long getSyncedFiles() {
+        return mSyncedFiles.get();
+    }
+
+    public long getWriteBehindNanos() {
+        return mWriteBehindNanos.get();
+    }
+
+    public long getWriteBehindFlushes() {
+        return mWriteBehindFlushes.get();
+    }
+
+    /**
+     * @return latency histograms of the file system calls made by the task
+     */
+    public IoStats getIoStats() {
+        return mIoStats;
+    }
+
+    /**
+     * @return files the AUTO strategy copied with the given strategy
+     */
+    public long getStrategyFiles(CopyOptions.CopyStrategy strategy) {
+        return mStrategyFiles.get(strategy).get();
+    }
+
+    @Override
+    public String toString() {
+        return "elapsed=" + TimeUnit.NANOSECONDS.toMillis(getElapsedNanos()) + "ms"
+                + ", preallocated=" + getPreallocatedFiles() + " files in " + TimeUnit.NANOSECONDS.toMillis(getPreallocateNanos()) + "ms"
+                + ", synced=" + getSyncedFiles() + " files in " + TimeUnit.NANOSECONDS.toMillis(getSyncNanos()) + "ms"
+                + ", write-behind=" + getWriteBehindFlushes() + " flushes in " + TimeUnit.NANOSECONDS.toMillis(getWriteBehindNanos()) + "ms"
+                + ", strategies=" + strategiesToString();
+    }
+
+    private String strategiesToString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (CopyOptions.CopyStrategy strategy : CopyOptions.CopyStrategy.values()) {
+            long files = getStrategyFiles(strategy);
+            if (files > 0) {
+                if (sb.length() > 1) {
+                    sb.append(", ");
+                }
+                sb.append(strategy).append('=').append(files);
+            }
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,95 @@
+package com.adyrsoft.soul.service;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of a task in bytes and files per second, smoothed with an exponentially
+ * weighted moving average so a short stall or burst barely moves it while a lasting change takes
+ * over within a few seconds. Safe to sample from several threads.
+ */
+public class ThroughputMeter {
+    public static final long UNKNOWN_ETA = -1;
+
+    // Shorter intervals than this are too noisy to measure a rate over
+    private static final long SAMPLE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+    // Time after which a measured rate only weighs 1/e of what it did
+    private static final long TIME_CONSTANT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private long mLastNanos;
+    private long mLastBytes;
+    private long mLastFiles;
+    private boolean mStarted;
+    private boolean mMeasured;
+    private double mBytesPerSecond;
+    private double mFilesPerSecond;
+
+    /**
+     * Takes the counters of the task at the given time. Samples closer than a quarter of a second
+     * to the last one taken into account are ignored.
+     */
+    public synchronized void sample(long nowNanos, long processedBytes, long processedFiles) {
+        if (!mStarted) {
+            mStarted = true;
+            setLastSample(nowNanos, processedBytes, processedFiles);
+            return;
+        }
+
+        long elapsed = nowNanos - mLastNanos;
+        if (elapsed < SAMPLE_INTERVAL_NANOS) {
+            return;
+        }
+
+        double seconds = (double) elapsed / TimeUnit.SECONDS.toNanos(1);
+        double bytesPerSecond = (processedBytes - mLastBytes) / seconds;
+        double filesPerSecond = (processedFiles - mLastFiles) / seconds;
+
+        if (mMeasured) {
+            double weight = 1 - Math.exp(-(double) elapsed / TIME_CONSTANT_NANOS);
+            mBytesPerSecond += weight * (bytesPerSecond - mBytesPerSecond);
+            mFilesPerSecond += weight * (filesPerSecond - mFilesPerSecond);
+        } else {
+            mMeasured = true;
+            mBytesPerSecond = bytesPerSecond;
+            mFilesPerSecond = filesPerSecond;
+        }
+
+        setLastSample(nowNanos, processedBytes, processedFiles);
+    }
+
+    public synchronized long getBytesPerSecond() {
+        return (long) mBytesPerSecond;
+    }
+
+    public synchronized double getFilesPerSecond() {
+        return mFilesPerSecond;
+    }
+
+    /**
+     * Estimates the time left from the byte rate when the remaining bytes are known, and from the
+     * file rate otherwise.
+     * @param remainingBytes bytes left to process, or a negative number if unknown
+     * @return milliseconds left, or UNKNOWN_ETA if there is no rate to estimate it with yet
+     */
+    public synchronized long getEtaMillis(long remainingBytes, long remainingFiles) {
+        if (remainingBytes == 0 || (remainingBytes < 0 && remainingFiles == 0)) {
+            return 0;
+        }
+
+        if (remainingBytes > 0 && mBytesPerSecond > 0) {
+            return (long) (remainingBytes * 1000 / mBytesPerSecond);
+        }
+
+        if (remainingBytes < 0 && mFilesPerSecond > 0) {
+            return (long) (remainingFiles * 1000 / mFilesPerSecond);
+        }
+
+        return UNKNOWN_ETA;
+    }
+
+    private void setLastSample(long nowNanos, long processedBytes, long processedFiles) {
+        mLastNanos = nowNanos;
+        mLastBytes = processedBytes;
+        mLastFiles = processedFiles;
+    }
+}
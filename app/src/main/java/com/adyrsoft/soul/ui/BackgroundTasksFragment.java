@@ -147,6 +147,9 @@ public class BackgroundTasksFragment extends Fragment implements RequestFileTran
                 case REMOVE:
                     taskOp = "Removing";
                     break;
+                case SYNC:
+                    taskOp = "Syncing";
+                    break;
             }
 
             String fileWord = info.getTotalFiles() > 1 ? "files" : "file";
@@ -161,8 +164,9 @@ public class BackgroundTasksFragment extends Fragment implements RequestFileTran
                 holder.to.setVisibility(View.GONE);
             }
 
-            holder.progressBar.setMax(info.getTotalFiles());
-            holder.progressBar.setProgress(info.getProcessedFiles());
+            holder.progressBar.setMax(ProgressFormatter.PROGRESS_MAX);
+            holder.progressBar.setProgress(ProgressFormatter.toProgressBarValue(info));
+            holder.throughput.setText(ProgressFormatter.formatThroughput(holder.rootView.getContext(), info));
         }
 
         @Override
@@ -201,6 +205,7 @@ public class BackgroundTasksFragment extends Fragment implements RequestFileTran
         public TextView to;
         public TextView toLabel;
         public TextView taskDescription;
+        public TextView throughput;
 
         public ProgressInfoViewHolder(View view) {
             super(view);
@@ -210,6 +215,7 @@ public class BackgroundTasksFragment extends Fragment implements RequestFileTran
             to = (TextView) view.findViewById(R.id.to);
             toLabel = (TextView) view.findViewById(R.id.to_label);
             taskDescription = (TextView) view.findViewById(R.id.task_description);
+            throughput = (TextView) view.findViewById(R.id.throughput);
         }
     }
 }
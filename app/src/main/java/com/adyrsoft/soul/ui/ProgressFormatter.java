@@ -0,0 +1,39 @@
+package com.adyrsoft.soul.ui;
+
+import android.content.Context;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
+
+import com.adyrsoft.soul.service.ProgressInfo;
+import com.adyrsoft.soul.service.ThroughputMeter;
+
+/**
+ * Turns the progress of a task into the text shown next to its progress bar
+ */
+public class ProgressFormatter {
+    // Resolution of the progress bars, which only take ints
+    public static final int PROGRESS_MAX = 1000;
+
+    public static int toProgressBarValue(ProgressInfo info) {
+        return Math.round(info.getProgress() * PROGRESS_MAX);
+    }
+
+    /**
+     * @return throughput and time left, like "2.10 MB/s, 01:05 left", or an empty string while
+     *         they aren't known yet
+     */
+    public static String formatThroughput(Context context, ProgressInfo info) {
+        if (info.getBytesPerSecond() <= 0) {
+            return "";
+        }
+
+        String rate = Formatter.formatShortFileSize(context, info.getBytesPerSecond()) + "/s";
+
+        long etaMillis = info.getEtaMillis();
+        if (etaMillis == ThroughputMeter.UNKNOWN_ETA) {
+            return rate;
+        }
+
+        return rate + ", " + DateUtils.formatElapsedTime(etaMillis / 1000) + " left";
+    }
+}
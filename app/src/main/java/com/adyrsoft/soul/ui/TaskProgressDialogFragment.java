@@ -12,9 +12,11 @@ import android.os.Bundle;
 public class TaskProgressDialogFragment extends DialogFragment {
     private static final String STATE_MAX_PROGRESS = "STATE_MAX_PROGRESS";
     private static final String STATE_PROGRESS = "STATE_PROGRESS";
+    private static final String DEFAULT_MESSAGE = "Please wait...";
     private ProgressDialog mDialog;
     private int mMaxProgress;
     private int mProgress;
+    private String mThroughput;
     private DialogInterface.OnClickListener mOnHideClickListener;
 
     @Override
@@ -28,8 +30,10 @@ public class TaskProgressDialogFragment extends DialogFragment {
 
         mDialog = new ProgressDialog(getActivity());
         mDialog.setTitle("Copying files");
-        mDialog.setMessage("Please wait...");
+        mDialog.setMessage(getMessage());
         mDialog.setIndeterminate(false);
+        // Progress is a fraction of PROGRESS_MAX, the count means nothing to the user
+        mDialog.setProgressNumberFormat(null);
         mDialog.setCancelable(false);
         mDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
         mDialog.setMax(mMaxProgress);
@@ -72,6 +76,20 @@ public class TaskProgressDialogFragment extends DialogFragment {
         }
     }
 
+    /**
+     * @param throughput text shown in place of the default message, empty to show that one
+     */
+    public void setThroughput(String throughput) {
+        mThroughput = throughput;
+        if (mDialog != null) {
+            mDialog.setMessage(getMessage());
+        }
+    }
+
+    private String getMessage() {
+        return mThroughput == null || mThroughput.isEmpty() ? DEFAULT_MESSAGE : mThroughput;
+    }
+
     public void setOnHideButtonClick(DialogInterface.OnClickListener onClickListener) {
         mOnHideClickListener = onClickListener;
     }
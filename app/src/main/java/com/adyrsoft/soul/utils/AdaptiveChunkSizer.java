@@ -0,0 +1,95 @@
+package com.adyrsoft.soul.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses how many bytes StreamDuplicator moves on each read/write round for a single file.
+ * The upper bound comes from the length of the file, so small files never hold big buffers, and
+ * the chunk size starts moderate and doubles while doing so keeps improving the measured
+ * throughput. Once bigger chunks stop paying off it settles on the best size seen.
+ */
+public class AdaptiveChunkSizer {
+    public static final int MIN_CHUNK_SIZE = 4096;
+    public static final int MAX_CHUNK_SIZE = 1024 * 1024;
+    public static final int INITIAL_CHUNK_SIZE = 64 * 1024;
+
+    // Throughput is measured over windows at least this long, so single slow syscalls don't
+    // drive the decisions
+    private static final long SAMPLE_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    // Relative change in throughput needed to consider it an improvement or a regression
+    private static final double SIGNIFICANT_CHANGE = 0.1;
+
+    private final int mMaxChunkSize;
+    private int mChunkSize;
+    private boolean mSettled;
+    private long mWindowStart;
+    private long mWindowBytes;
+    private double mLastRate;
+
+    /**
+     * @param expectedLength length of the data to be copied, or a negative value if unknown
+     */
+    public AdaptiveChunkSizer(long expectedLength) {
+        mMaxChunkSize = maxChunkSizeFor(expectedLength);
+        mChunkSize = Math.min(INITIAL_CHUNK_SIZE, mMaxChunkSize);
+        mSettled = mChunkSize == mMaxChunkSize;
+    }
+
+    /**
+     * Biggest chunk that makes sense for data of the given length, rounded up to a power of two.
+     */
+    public static int maxChunkSizeFor(long expectedLength) {
+        if (expectedLength < 0 || expectedLength >= MAX_CHUNK_SIZE) {
+            return MAX_CHUNK_SIZE;
+        }
+
+        int size = MIN_CHUNK_SIZE;
+        while (size < expectedLength) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    public int getMaxChunkSize() {
+        return mMaxChunkSize;
+    }
+
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    // Marks the start of the first sample window
+    public void start(long nowNanos) {
+        mWindowStart = nowNanos;
+        mWindowBytes = 0;
+    }
+
+    public void onChunkTransferred(int bytes, long nowNanos) {
+        if (mSettled) {
+            return;
+        }
+
+        mWindowBytes += bytes;
+        long elapsed = nowNanos - mWindowStart;
+        if (elapsed < SAMPLE_WINDOW_NANOS) {
+            return;
+        }
+
+        double rate = mWindowBytes / (double) elapsed;
+
+        if (mLastRate > 0 && rate < mLastRate * (1 - SIGNIFICANT_CHANGE)) {
+            // The last increase made things worse, go back to the previous size
+            mChunkSize = Math.max(mChunkSize / 2, MIN_CHUNK_SIZE);
+            mSettled = true;
+        } else if (mLastRate == 0 || rate > mLastRate * (1 + SIGNIFICANT_CHANGE)) {
+            mChunkSize = Math.min(mChunkSize * 2, mMaxChunkSize);
+            mSettled = mChunkSize == mMaxChunkSize;
+        } else {
+            mSettled = true;
+        }
+
+        mLastRate = rate;
+        start(nowNanos);
+    }
+}
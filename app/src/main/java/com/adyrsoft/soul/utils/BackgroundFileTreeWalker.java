@@ -0,0 +1,120 @@
+package com.adyrsoft.soul.utils;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * FileTreeWalker that walks ahead on a thread of its own, so entries are ready as soon as they
+ * are asked for. It never gets more than a fixed number of entries ahead of the caller. The
+ * unreadable entries are reported from next(), on the caller's thread, in the order they were
+ * found. Must be closed once it's no longer needed, even if the walk was completed.
+ */
+public class BackgroundFileTreeWalker extends FileTreeWalker {
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static class Item {
+        private final File mEntry;
+        private final boolean mUnreadable;
+
+        Item(File entry, boolean unreadable) {
+            mEntry = entry;
+            mUnreadable = unreadable;
+        }
+    }
+
+    // Marks the end of the walk
+    private static final Item END = new Item(null, false);
+
+    private final BlockingQueue<Item> mQueue;
+    private final OnUnreadableEntryListener mListener;
+    private Thread mThread;
+    private volatile RuntimeException mFailure;
+    private boolean mFinished;
+
+    public BackgroundFileTreeWalker(List<File> roots, Order order, OnUnreadableEntryListener listener) {
+        this(roots, order, listener, new ArrayBlockingQueue<Item>(DEFAULT_CAPACITY));
+    }
+
+    public BackgroundFileTreeWalker(List<File> roots, Order order, OnUnreadableEntryListener listener, int capacity) {
+        this(roots, order, listener, new ArrayBlockingQueue<Item>(capacity));
+    }
+
+    private BackgroundFileTreeWalker(List<File> roots, Order order, OnUnreadableEntryListener listener, final BlockingQueue<Item> queue) {
+        super(roots, order, new OnUnreadableEntryListener() {
+            @Override
+            public void onUnreadableEntry(File entry) throws InterruptedException {
+                queue.put(new Item(entry, true));
+            }
+        });
+
+        mQueue = queue;
+        mListener = listener;
+    }
+
+    /**
+     * Starts walking the trees. Nothing is walked before this is called.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                walk();
+            }
+        }, "FileTreeWalker");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Stops the walk, if it's still going
+     */
+    public synchronized void close() {
+        if (mThread != null) {
+            mThread.interrupt();
+        }
+    }
+
+    @Override
+    public File next() throws InterruptedException {
+        while (!mFinished) {
+            Item item = mQueue.take();
+
+            if (item == END) {
+                mFinished = true;
+                if (mFailure != null) {
+                    throw mFailure;
+                }
+            } else if (item.mUnreadable) {
+                if (mListener != null) {
+                    mListener.onUnreadableEntry(item.mEntry);
+                }
+            } else {
+                return item.mEntry;
+            }
+        }
+        return null;
+    }
+
+    private void walk() {
+        try {
+            try {
+                File entry;
+                while ((entry = super.next()) != null) {
+                    mQueue.put(new Item(entry, false));
+                }
+            } catch (RuntimeException e) {
+                // Handed to the caller instead of killing the thread
+                mFailure = e;
+            }
+            mQueue.put(END);
+        } catch (InterruptedException e) {
+            // Closed, nobody is waiting for more entries
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.adyrsoft.soul.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounded pool of byte buffers. StreamDuplicator borrows its buffers from here, so copying many
+ * files in a row doesn't allocate a new buffer for each one of them.
+ *
+ * Buffers come in power of two size classes between the minimum and maximum buffer size, and the
+ * pool never keeps more than maxPooledBytes in idle buffers.
+ */
+public class BufferPool {
+    private final int mMinBufferSize;
+    private final int mMaxBufferSize;
+    private final long mMaxPooledBytes;
+    private final List<ArrayDeque<byte[]>> mFreeBuffers;
+    private long mPooledBytes;
+    private long mHits;
+    private long mMisses;
+
+    public BufferPool(int minBufferSize, int maxBufferSize, long maxPooledBytes) {
+        if (minBufferSize < 1) {
+            throw new IllegalArgumentException("minBufferSize cannot be smaller than 1");
+        }
+
+        if (maxBufferSize < minBufferSize) {
+            throw new IllegalArgumentException("maxBufferSize cannot be smaller than minBufferSize");
+        }
+
+        if (maxPooledBytes < 0) {
+            throw new IllegalArgumentException("maxPooledBytes cannot be negative");
+        }
+
+        mMinBufferSize = minBufferSize;
+        mMaxBufferSize = maxBufferSize;
+        mMaxPooledBytes = maxPooledBytes;
+
+        int classes = 1;
+        for (long size = minBufferSize; size < maxBufferSize; size <<= 1) {
+            classes++;
+        }
+
+        mFreeBuffers = new ArrayList<>(classes);
+        for (int i = 0; i < classes; i++) {
+            mFreeBuffers.add(new ArrayDeque<byte[]>());
+        }
+    }
+
+    /**
+     * Lends a buffer of at least minSize bytes. A new one is allocated when there isn't a free buffer
+     * of the right size class, or when minSize is bigger than getMaxBufferSize().
+     */
+    public byte[] acquire(int minSize) {
+        int sizeClass = sizeClassFor(minSize);
+
+        synchronized (this) {
+            if (sizeClass >= 0) {
+                byte[] buffer = mFreeBuffers.get(sizeClass).poll();
+                if (buffer != null) {
+                    mPooledBytes -= buffer.length;
+                    mHits++;
+                    return buffer;
+                }
+            }
+            mMisses++;
+        }
+
+        return new byte[sizeClass >= 0 ? classSize(sizeClass) : minSize];
+    }
+
+    /**
+     * Gives back a buffer obtained through acquire(). Buffers that don't match a size class, or that
+     * don't fit because the pool is already full, are left to the garbage collector.
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+
+        int sizeClass = sizeClassFor(buffer.length);
+        if (sizeClass < 0 || classSize(sizeClass) != buffer.length) {
+            return;
+        }
+
+        synchronized (this) {
+            if (mPooledBytes + buffer.length <= mMaxPooledBytes) {
+                mFreeBuffers.get(sizeClass).push(buffer);
+                mPooledBytes += buffer.length;
+            }
+        }
+    }
+
+    private int sizeClassFor(int size) {
+        if (size > mMaxBufferSize) {
+            return -1;
+        }
+
+        int sizeClass = 0;
+        long classSize = mMinBufferSize;
+        while (classSize < size) {
+            classSize <<= 1;
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+
+    private int classSize(int sizeClass) {
+        return mMinBufferSize << sizeClass;
+    }
+
+    public int getMinBufferSize() {
+        return mMinBufferSize;
+    }
+
+    public int getMaxBufferSize() {
+        return mMaxBufferSize;
+    }
+
+    public long getMaxPooledBytes() {
+        return mMaxPooledBytes;
+    }
+
+    // Number of buffers currently waiting in the pool
+    public synchronized int getSize() {
+        int size = 0;
+        for (ArrayDeque<byte[]> freeBuffers : mFreeBuffers) {
+            size += freeBuffers.size();
+        }
+        return size;
+    }
+
+    public synchronized long getPooledBytes() {
+        return mPooledBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BufferPool{size=" + getSize() +
+                ", pooledBytes=" + mPooledBytes +
+                ", maxPooledBytes=" + mMaxPooledBytes +
+                ", hits=" + mHits +
+                ", misses=" + mMisses + "}";
+    }
+}
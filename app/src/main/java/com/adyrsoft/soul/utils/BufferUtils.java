@@ -0,0 +1,70 @@
+package com.adyrsoft.soul.utils;
+
+import android.util.Log;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers for direct and memory mapped buffers
+ */
+public class BufferUtils {
+    private static final String TAG = BufferUtils.class.getName();
+
+    private static volatile boolean sUnmapSupported = true;
+
+    /**
+     * Releases the memory or mapping behind a direct buffer right away instead of waiting for the
+     * buffer to be garbage collected, which with mappings can take long enough for a 32 bits
+     * process to run out of address space. There's no public API for it, so it's done through
+     * reflection, and silently left to the garbage collector when that fails. The buffer, and any
+     * other buffer sharing its memory, must not be used afterwards.
+     */
+    public static void unmap(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || !sUnmapSupported) {
+            return;
+        }
+
+        try {
+            // Java 8, and the OpenJDK based libcore of Android 7, unmap through the buffer's
+            // Cleaner. Their free() only marks the memory as freed, leaving it mapped until GC.
+            Method cleanerMethod = findMethod(buffer.getClass(), "cleaner");
+            if (cleanerMethod != null) {
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    Method clean = findMethod(cleaner.getClass(), "clean");
+                    if (clean != null) {
+                        clean.invoke(cleaner);
+                        return;
+                    }
+                }
+            }
+
+            // Older Android runtimes have no Cleaner, their DirectByteBuffer unmaps itself
+            Method free = findMethod(buffer.getClass(), "free");
+            if (free != null) {
+                free.invoke(buffer);
+                return;
+            }
+
+            sUnmapSupported = false;
+        } catch (Exception e) {
+            // Includes the runtimes that forbid the access
+            Log.w(TAG, "Can't unmap buffers, leaving them to the garbage collector", e);
+            sUnmapSupported = false;
+        }
+    }
+
+    private static Method findMethod(Class<?> cls, String name) {
+        for (Class<?> c = cls; c != null; c = c.getSuperclass()) {
+            try {
+                Method method = c.getDeclaredMethod(name);
+                method.setAccessible(true);
+                return method;
+            } catch (NoSuchMethodException e) {
+                // Try its superclass
+            }
+        }
+        return null;
+    }
+}
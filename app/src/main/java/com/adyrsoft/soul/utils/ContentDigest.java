@@ -0,0 +1,126 @@
+package com.adyrsoft.soul.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * Checksum or cryptographic digest computed over the data of a copy. Besides any algorithm known
+ * to MessageDigest, such as SHA-256, it supports the much cheaper CRC32.
+ */
+public abstract class ContentDigest {
+    public static final String CRC32 = "CRC32";
+    public static final String SHA256 = "SHA-256";
+
+    public static ContentDigest getInstance(String algorithm) throws NoSuchAlgorithmException {
+        if (CRC32.equalsIgnoreCase(algorithm)) {
+            return new Crc32Digest();
+        }
+        return new MessageDigestWrapper(MessageDigest.getInstance(algorithm));
+    }
+
+    public abstract void update(byte[] buffer, int offset, int length);
+
+    // Returns the digest of everything given so far and resets it for the next file
+    public abstract byte[] digest();
+
+    /**
+     * Wraps the given stream so everything read through it is added to this digest
+     */
+    public InputStream wrap(InputStream is) {
+        return new DigestingInputStream(is, this);
+    }
+
+    public static String toHex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static class MessageDigestWrapper extends ContentDigest {
+        private final MessageDigest mDigest;
+
+        MessageDigestWrapper(MessageDigest digest) {
+            mDigest = digest;
+        }
+
+        @Override
+        public void update(byte[] buffer, int offset, int length) {
+            mDigest.update(buffer, offset, length);
+        }
+
+        @Override
+        public byte[] digest() {
+            return mDigest.digest();
+        }
+    }
+
+    private static class Crc32Digest extends ContentDigest {
+        private final CRC32 mCrc = new CRC32();
+
+        @Override
+        public void update(byte[] buffer, int offset, int length) {
+            mCrc.update(buffer, offset, length);
+        }
+
+        @Override
+        public byte[] digest() {
+            long value = mCrc.getValue();
+            mCrc.reset();
+            return new byte[] {
+                    (byte) (value >>> 24),
+                    (byte) (value >>> 16),
+                    (byte) (value >>> 8),
+                    (byte) value
+            };
+        }
+    }
+
+    private static class DigestingInputStream extends FilterInputStream {
+        private final ContentDigest mDigest;
+
+        DigestingInputStream(InputStream in, ContentDigest digest) {
+            super(in);
+            mDigest = digest;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mDigest.update(new byte[] { (byte) b }, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                mDigest.update(buffer, offset, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes must be digested too
+            byte[] buffer = new byte[(int) Math.min(n, StreamDuplicator.BUFFER_SIZE)];
+            long skipped = 0;
+            while (skipped < n) {
+                int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+                if (read == -1) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.adyrsoft.soul.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Brings an existing copy of a file up to date by rewriting only the blocks that differ from the
+ * source, leaving the unchanged ones untouched.
+ */
+public class DeltaDuplicator {
+    public interface OnDeltaProgressListener {
+        /**
+         * @param deltaBytes bytes that differed and were written to the destination
+         * @param savedBytes bytes that were already up to date and weren't written
+         */
+        void onDeltaProgress(int deltaBytes, int savedBytes);
+    }
+
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+    public static final int READ_SIZE = 1024 * 1024;
+
+    private final StreamDuplicator mStreamDuplicator;
+    private final int mBlockSize;
+
+    public DeltaDuplicator(StreamDuplicator streamDuplicator) {
+        this(streamDuplicator, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param streamDuplicator used for its buffers and positional reads and writes
+     */
+    public DeltaDuplicator(StreamDuplicator streamDuplicator, int blockSize) {
+        if (blockSize <= 0 || READ_SIZE % blockSize != 0) {
+            throw new IllegalArgumentException("Block size must divide " + READ_SIZE);
+        }
+        mStreamDuplicator = streamDuplicator;
+        mBlockSize = blockSize;
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    /**
+     * Makes dst equal to src. Both are read in full, and every block of dst that doesn't match the
+     * block at the same offset of src is overwritten. dst is then truncated to the length of src.
+     * @return the number of bytes written to dst
+     */
+    public long update(FileChannel src, FileChannel dst, OnDeltaProgressListener listener) throws StreamDuplicationFailedException {
+        byte[] srcArray = mStreamDuplicator.obtainBuffer(READ_SIZE);
+        byte[] dstArray = mStreamDuplicator.obtainBuffer(READ_SIZE);
+        ByteBuffer srcBuffer = ByteBuffer.wrap(srcArray, 0, READ_SIZE).slice();
+        ByteBuffer dstBuffer = ByteBuffer.wrap(dstArray, 0, READ_SIZE).slice();
+
+        long written = 0;
+        long position = 0;
+
+        try {
+            long dstLength = dst.size();
+
+            while (true) {
+                int srcRead = readFully(src, srcBuffer, position);
+                if (srcRead == 0) {
+                    break;
+                }
+
+                // Past the end of dst there's nothing to compare against
+                int dstRead = position < dstLength ? readFully(dst, dstBuffer, position) : 0;
+
+                int deltaBytes = 0;
+                int savedBytes = 0;
+                for (int offset = 0; offset < srcRead; offset += mBlockSize) {
+                    int blockLength = Math.min(mBlockSize, srcRead - offset);
+
+                    if (offset + blockLength <= dstRead && sameBlock(srcArray, dstArray, offset, blockLength)) {
+                        savedBytes += blockLength;
+                        continue;
+                    }
+
+                    ByteBuffer block = ByteBuffer.wrap(srcArray, offset, blockLength);
+                    mStreamDuplicator.writeAt(dst, block, position + offset);
+                    deltaBytes += blockLength;
+                }
+
+                written += deltaBytes;
+                position += srcRead;
+
+                // Both files were read, so the whole chunk counts against the rate limits
+                mStreamDuplicator.onChunkCopied(null, srcRead);
+
+                if (listener != null) {
+                    listener.onDeltaProgress(deltaBytes, savedBytes);
+                }
+
+                if (srcRead < READ_SIZE) {
+                    break;
+                }
+            }
+
+            if (dst.size() > position) {
+                try {
+                    dst.truncate(position);
+                } catch (ClosedByInterruptException e) {
+                    throw e;
+                } catch (IOException e) {
+                    throw new StreamWriteFailureException(dst, e);
+                }
+            }
+        } catch (ClosedByInterruptException e) {
+            throw new StreamDuplicationFailedException(new InterruptedException("Delta update was interrupted"));
+        } catch (IOException e) {
+            throw new StreamDuplicationFailedException(e);
+        } finally {
+            mStreamDuplicator.recycleBuffer(srcArray);
+            mStreamDuplicator.recycleBuffer(dstArray);
+        }
+
+        return written;
+    }
+
+    private int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.clear();
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = mStreamDuplicator.readAt(channel, buffer, position + total);
+            if (read == -1) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private static boolean sameBlock(byte[] a, byte[] b, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
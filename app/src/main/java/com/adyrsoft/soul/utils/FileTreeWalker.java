@@ -0,0 +1,148 @@
+package com.adyrsoft.soul.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Walks the trees under a list of roots depth first, one entry at a time, instead of listing them
+ * all up front. Only the listings of the folders between the current entry and its root are kept
+ * in memory. Symbolic links are skipped, like they were never there.
+ */
+public class FileTreeWalker {
+    public enum Order {
+        // Folders come before their contents, as needed to recreate them
+        PRE_ORDER,
+        // Folders come after their contents, as needed to remove them
+        POST_ORDER
+    }
+
+    public interface OnUnreadableEntryListener {
+        /**
+         * Called with the entries that couldn't be inspected or, being folders, listed
+         */
+        void onUnreadableEntry(File entry) throws InterruptedException;
+    }
+
+    // Entries of a folder still to be walked
+    private static class Level {
+        private final File mFolder;
+        private final File[] mEntries;
+        private int mNext;
+
+        Level(File folder, File[] entries) {
+            mFolder = folder;
+            mEntries = entries;
+        }
+    }
+
+    private final Order mOrder;
+    private final OnUnreadableEntryListener mListener;
+    private final Deque<Level> mLevels = new ArrayDeque<>();
+    private Set<File> mExcludedFolders = Collections.emptySet();
+    // Only written by the walking thread, but read from others
+    private volatile int mFoundEntries;
+
+    public FileTreeWalker(List<File> roots, Order order, OnUnreadableEntryListener listener) {
+        if (order == null) {
+            throw new NullPointerException("order cannot be null");
+        }
+
+        mOrder = order;
+        mListener = listener;
+        mLevels.push(new Level(null, roots.toArray(new File[roots.size()])));
+    }
+
+    /**
+     * Skips the given folders and everything under them, like they were never there, even if
+     * they are created while walking. Must be called before the walk starts.
+     */
+    public void setExcludedFolders(Collection<File> folders) {
+        mExcludedFolders = absoluteFiles(folders);
+    }
+
+    static Set<File> absoluteFiles(Collection<File> files) {
+        Set<File> absolute = new HashSet<>();
+        for (File file : files) {
+            absolute.add(file.getAbsoluteFile());
+        }
+        return absolute;
+    }
+
+    /**
+     * @return the next entry, or null once every tree has been walked
+     */
+    public File next() throws InterruptedException {
+        while (!mLevels.isEmpty()) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException("Walk was interrupted");
+            }
+
+            Level level = mLevels.peek();
+            if (level.mNext == level.mEntries.length) {
+                mLevels.pop();
+                if (mOrder == Order.POST_ORDER && level.mFolder != null) {
+                    return found(level.mFolder);
+                }
+                continue;
+            }
+
+            File entry = level.mEntries[level.mNext];
+            // Walked entries aren't needed anymore
+            level.mEntries[level.mNext++] = null;
+
+            try {
+                if (FileUtils.isSymlink(entry)) {
+                    continue;
+                }
+            } catch (IOException e) {
+                onUnreadableEntry(entry);
+                continue;
+            }
+
+            if (!entry.isDirectory()) {
+                return found(entry);
+            }
+
+            if (!mExcludedFolders.isEmpty() && mExcludedFolders.contains(entry.getAbsoluteFile())) {
+                continue;
+            }
+
+            File[] children = entry.listFiles();
+            if (children == null) {
+                onUnreadableEntry(entry);
+                children = new File[0];
+            }
+
+            mLevels.push(new Level(entry, children));
+            if (mOrder == Order.PRE_ORDER) {
+                return found(entry);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return number of entries returned so far
+     */
+    public int getFoundEntries() {
+        return mFoundEntries;
+    }
+
+    private File found(File entry) {
+        mFoundEntries++;
+        return entry;
+    }
+
+    private void onUnreadableEntry(File entry) throws InterruptedException {
+        if (mListener != null) {
+            mListener.onUnreadableEntry(entry);
+        }
+    }
+}
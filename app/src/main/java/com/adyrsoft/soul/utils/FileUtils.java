@@ -1,9 +1,14 @@
 package com.adyrsoft.soul.utils;
 
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.util.Log;
 
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -25,6 +30,110 @@ public class FileUtils {
         return !canon.getCanonicalFile().equals(canon.getAbsoluteFile());
     }
 
+    /**
+     * Returns the id of the device holding the given file, or of its nearest existing ancestor if
+     * the file doesn't exist yet. Returns -1 when it can't be known, as on devices older than
+     * Lollipop.
+     */
+    public static long getDeviceId(File file) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return -1;
+        }
+
+        File existing = file.getAbsoluteFile();
+        while (existing != null && !existing.exists()) {
+            existing = existing.getParentFile();
+        }
+
+        if (existing == null) {
+            return -1;
+        }
+
+        try {
+            return Os.stat(existing.getPath()).st_dev;
+        } catch (ErrnoException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Allocates disk space for the first length bytes of the file, growing it if needed. Returns
+     * false if it couldn't be done, as on devices older than Lollipop or file systems without
+     * fallocate support, in which case the file is left as it was.
+     */
+    public static boolean preallocate(FileDescriptor fd, long length) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || length <= 0) {
+            return false;
+        }
+
+        try {
+            Os.posix_fallocate(fd, 0, length);
+            return true;
+        } catch (ErrnoException e) {
+            // A real lack of space will show up again when writing
+            return false;
+        }
+    }
+
+    /**
+     * Flushes the data written to fd to the storage device, without the metadata that doesn't
+     * affect reading it back when the platform allows.
+     */
+    public static void dataSync(FileDescriptor fd) throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            fd.sync();
+            return;
+        }
+
+        try {
+            Os.fdatasync(fd);
+        } catch (ErrnoException e) {
+            throw new IOException(e);
+        }
+    }
+
+    // Linux lseek whence values, not exposed by OsConstants
+    private static final int SEEK_DATA = 3;
+    private static final int SEEK_HOLE = 4;
+
+    /**
+     * Returns the offset of the first byte of data at or after offset in a sparse file, or size if
+     * only holes are left. When the file system or the platform can't tell holes apart, offset
+     * itself is returned so the caller reads everything. Moves the file offset of fd.
+     */
+    public static long seekData(FileDescriptor fd, long offset, long size) {
+        return seek(fd, offset, size, SEEK_DATA, offset);
+    }
+
+    /**
+     * Returns the offset of the first hole at or after offset, which is size if there are no more
+     * holes or they can't be found. Moves the file offset of fd.
+     */
+    public static long seekHole(FileDescriptor fd, long offset, long size) {
+        return seek(fd, offset, size, SEEK_HOLE, size);
+    }
+
+    private static long seek(FileDescriptor fd, long offset, long size, int whence, long fallback) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || offset >= size) {
+            return fallback;
+        }
+
+        try {
+            long result = Os.lseek(fd, offset, whence);
+            if (result < offset) {
+                // Not what SEEK_DATA and SEEK_HOLE return, so the kernel doesn't know them
+                return fallback;
+            }
+            return Math.min(result, size);
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENXIO) {
+                // No more data past offset
+                return size;
+            }
+            return fallback;
+        }
+    }
+
     public static void closeSilently(Closeable closeable) {
         try {
             if (closeable != null) {
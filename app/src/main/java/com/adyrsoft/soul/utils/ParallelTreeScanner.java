@@ -0,0 +1,159 @@
+package com.adyrsoft.soul.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the entries and bytes under a list of roots on a pool of threads. Every folder is listed
+ * by a task of its own, so a wide tree keeps all the threads busy. The counts can be read at any
+ * time while the scan goes on. Entries are counted like FileTreeWalker returns them: folders and
+ * files, but not symbolic links.
+ */
+public class ParallelTreeScanner {
+    private final List<File> mRoots;
+    private final int mParallelism;
+    private final AtomicLong mEntries = new AtomicLong();
+    private final AtomicLong mBytes = new AtomicLong();
+    // Folders found but not listed yet, plus one while the roots are being visited
+    private final AtomicInteger mPendingFolders = new AtomicInteger();
+    private Set<File> mExcludedFolders = Collections.emptySet();
+    private ExecutorService mExecutor;
+    private volatile boolean mFinished;
+    private volatile boolean mClosed;
+
+    public ParallelTreeScanner(List<File> roots, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism cannot be smaller than 1");
+        }
+
+        mRoots = new ArrayList<>(roots);
+        mParallelism = parallelism;
+    }
+
+    /**
+     * Leaves the given folders and everything under them out of the counts, like
+     * FileTreeWalker.setExcludedFolders() does. Must be called before the scan starts.
+     */
+    public synchronized void setExcludedFolders(Collection<File> folders) {
+        mExcludedFolders = FileTreeWalker.absoluteFiles(folders);
+    }
+
+    public synchronized void start() {
+        if (mExecutor != null) {
+            return;
+        }
+
+        mExecutor = Executors.newFixedThreadPool(mParallelism, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ParallelTreeScanner");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        mPendingFolders.incrementAndGet();
+        for (File root : mRoots) {
+            visit(root);
+        }
+        onFolderScanned();
+    }
+
+    /**
+     * Stops the scan, if it's still going. The counts stay as they were.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+        }
+    }
+
+    public long getEntries() {
+        return mEntries.get();
+    }
+
+    public long getBytes() {
+        return mBytes.get();
+    }
+
+    /**
+     * @return whether the whole tree was scanned, so the counts are final
+     */
+    public boolean isFinished() {
+        return mFinished;
+    }
+
+    private void visit(File entry) {
+        try {
+            if (FileUtils.isSymlink(entry)) {
+                return;
+            }
+        } catch (IOException e) {
+            // The walk reports it when it gets there
+            return;
+        }
+
+        boolean directory = entry.isDirectory();
+        if (directory && !mExcludedFolders.isEmpty() && mExcludedFolders.contains(entry.getAbsoluteFile())) {
+            return;
+        }
+
+        mEntries.incrementAndGet();
+
+        if (!directory) {
+            mBytes.addAndGet(entry.length());
+            return;
+        }
+
+        final File folder = entry;
+        mPendingFolders.incrementAndGet();
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    scan(folder);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closed, the counts won't be completed anyway
+        }
+    }
+
+    private void scan(File folder) {
+        try {
+            File[] children = folder.listFiles();
+            if (children == null) {
+                return;
+            }
+
+            for (File child : children) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                visit(child);
+            }
+        } finally {
+            onFolderScanned();
+        }
+    }
+
+    private void onFolderScanned() {
+        // Folders cut short by close() would otherwise look finished
+        if (mPendingFolders.decrementAndGet() == 0 && !mClosed) {
+            mFinished = true;
+            mExecutor.shutdown();
+        }
+    }
+}
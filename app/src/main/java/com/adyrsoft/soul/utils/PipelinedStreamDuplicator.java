@@ -0,0 +1,158 @@
+package com.adyrsoft.soul.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * StreamDuplicator that reads the source on a dedicated reader thread while the calling thread
+ * writes to the destination, so both devices are kept busy when copying between different storage
+ * devices. Both threads share a ring of RING_SIZE buffers.
+ *
+ * If the calling thread is interrupted the duplication stops and StreamDuplicationFailedException
+ * is thrown with an InterruptedException as its cause. The kernel transfer path is disabled by
+ * default, since it serializes reads and writes again.
+ */
+public class PipelinedStreamDuplicator extends StreamDuplicator {
+    public static final int RING_SIZE = 4;
+    public static final int PIPELINE_CHUNK_SIZE = 256 * 1024;
+
+    private static class Chunk {
+        private final byte[] mData;
+        private int mLength;
+
+        Chunk(byte[] data) {
+            mData = data;
+        }
+    }
+
+    // Marks the end of the source, either because it was fully read or because reading failed
+    private static final Chunk END_OF_STREAM = new Chunk(null);
+
+    private final ExecutorService mReaderExecutor;
+
+    /**
+     * @param readerExecutor executor where reader threads are run. It must be able to start a new
+     *                       thread for each concurrent duplication, like a cached thread pool.
+     */
+    public PipelinedStreamDuplicator(BufferPool bufferPool, ExecutorService readerExecutor) {
+        super(bufferPool);
+        mReaderExecutor = readerExecutor;
+        setChannelTransferEnabled(false);
+    }
+
+    @Override
+    public void duplicate(InputStream is, OutputStream os, int bufferSize, OnDuplicationProgressListener listener) throws StreamDuplicationFailedException {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize cannot be smaller than 1");
+        }
+
+        if (isChannelTransferEnabled() || isSparseEnabled()) {
+            super.duplicate(is, os, bufferSize, listener);
+            return;
+        }
+
+        pipeline(is, os, bufferSize, listener);
+    }
+
+    @Override
+    public void duplicateAdaptive(InputStream is, OutputStream os, long expectedLength, OnDuplicationProgressListener listener) throws StreamDuplicationFailedException {
+        int chunkSize = Math.min(PIPELINE_CHUNK_SIZE, AdaptiveChunkSizer.maxChunkSizeFor(expectedLength));
+
+        if (isChannelTransferEnabled() || isSparseEnabled() || (expectedLength >= 0 && expectedLength <= chunkSize)) {
+            // Not worth a second thread if everything fits in a single chunk
+            super.duplicateAdaptive(is, os, expectedLength, listener);
+            return;
+        }
+
+        pipeline(is, os, chunkSize, listener);
+    }
+
+    private void pipeline(final InputStream is, OutputStream os, final int chunkSize, OnDuplicationProgressListener listener) throws StreamDuplicationFailedException {
+        final BlockingQueue<Chunk> freeChunks = new ArrayBlockingQueue<>(RING_SIZE);
+        final BlockingQueue<Chunk> filledChunks = new ArrayBlockingQueue<>(RING_SIZE + 1);
+        final Chunk[] ring = new Chunk[RING_SIZE];
+        final IOException[] readError = new IOException[1];
+        final CountDownLatch readerDone = new CountDownLatch(1);
+
+        for (int i = 0; i < RING_SIZE; i++) {
+            ring[i] = new Chunk(obtainBuffer(chunkSize));
+            freeChunks.add(ring[i]);
+        }
+
+        Future<?> readerFuture = null;
+        try {
+            readerFuture = mReaderExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            Chunk chunk = freeChunks.take();
+                            chunk.mLength = read(is, chunkSize, chunk.mData);
+                            if (chunk.mLength == -1) {
+                                break;
+                            }
+                            filledChunks.put(chunk);
+                        }
+                    } catch (IOException e) {
+                        readError[0] = e;
+                    } catch (InterruptedException e) {
+                        // Writer gave up, nobody is waiting for more data
+                    } finally {
+                        filledChunks.offer(END_OF_STREAM);
+                        readerDone.countDown();
+                    }
+                }
+            });
+
+            Chunk chunk;
+            while ((chunk = filledChunks.take()) != END_OF_STREAM) {
+                // The chunk belongs to the reader again as soon as it's back in the free queue
+                int length = chunk.mLength;
+                write(os, chunk.mData, length);
+                freeChunks.put(chunk);
+
+                onChunkCopied(listener, length);
+            }
+
+            if (readError[0] != null) {
+                throw new StreamDuplicationFailedException(readError[0]);
+            }
+        } catch (IOException e) {
+            throw new StreamDuplicationFailedException(e);
+        } catch (InterruptedException e) {
+            throw new StreamDuplicationFailedException(e);
+        } finally {
+            if (readerFuture != null) {
+                readerFuture.cancel(true);
+                awaitReader(readerDone);
+            }
+
+            for (Chunk chunk : ring) {
+                recycleBuffer(chunk.mData);
+            }
+        }
+    }
+
+    // Buffers can't go back to the pool while the reader may still be filling one of them
+    private void awaitReader(CountDownLatch readerDone) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                readerDone.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,8 +1,15 @@
 package com.adyrsoft.soul.utils;
 
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
 
 /**
  * Created by Adrian on 08/03/2016.
@@ -13,9 +20,93 @@ public class StreamDuplicator {
         void onDuplicationProgress(int bytesCopied);
     }
 
+    // Used to measure each call made to read or write the data, from the thread that made it
+    public interface OnIoListener {
+        void onRead(long nanos, int bytes);
+        void onWrite(long nanos, int bytes);
+        // FileChannel.transferTo reads and writes in the same call
+        void onTransfer(long nanos, long bytes);
+    }
+
     // Default buffer size
     public static final int BUFFER_SIZE = 4096;
 
+    // Bytes handed to the kernel on each transferTo call. It's also the granularity of the
+    // progress notifications when the channel path is taken.
+    public static final int TRANSFER_CHUNK_SIZE = 1024 * 1024;
+
+    // Granularity at which zeroed data is detected and left as a hole in sparse mode. It matches
+    // the block size of most file systems, the smallest hole they can keep.
+    public static final int SPARSE_BLOCK_SIZE = 4096;
+
+    private final BufferPool mBufferPool;
+    private volatile boolean mChannelTransferEnabled = true;
+    private volatile boolean mSparseEnabled;
+    private volatile TokenBucket[] mRateLimiters = new TokenBucket[0];
+    private volatile OnIoListener mIoListener;
+
+    public StreamDuplicator() {
+        this(null);
+    }
+
+    /**
+     * @param bufferPool pool the buffered loop borrows its buffers from, or null to allocate a
+     *                   new buffer on each call
+     */
+    public StreamDuplicator(BufferPool bufferPool) {
+        mBufferPool = bufferPool;
+    }
+
+    public BufferPool getBufferPool() {
+        return mBufferPool;
+    }
+
+    public boolean isChannelTransferEnabled() {
+        return mChannelTransferEnabled;
+    }
+
+    /**
+     * When enabled (the default), duplicating a FileInputStream into a FileOutputStream lets the
+     * kernel move the data through FileChannel.transferTo instead of pumping it through a user
+     * space buffer. Any other pair of streams always uses the buffered loop.
+     */
+    public void setChannelTransferEnabled(boolean enabled) {
+        mChannelTransferEnabled = enabled;
+    }
+
+    public boolean isSparseEnabled() {
+        return mSparseEnabled;
+    }
+
+    /**
+     * When enabled, blocks of SPARSE_BLOCK_SIZE zeroes aren't written when the destination is a
+     * FileOutputStream or a FileChannel. The destination offset is moved past them instead, leaving
+     * a hole. Holes of a FileInputStream source are found with SEEK_DATA/SEEK_HOLE where the
+     * platform supports them and skipped without being read. The destination must not be opened
+     * in append mode, and must not hold stale data where holes may be left.
+     */
+    public void setSparseEnabled(boolean enabled) {
+        mSparseEnabled = enabled;
+    }
+
+    /**
+     * Caps the throughput of every copy made from now on, including the ones in progress, to the
+     * rate of the slowest of the given limiters. Limiters can be shared with other duplicators to
+     * cap their combined throughput, and their rate changed at any time.
+     */
+    public void setRateLimiters(TokenBucket... rateLimiters) {
+        mRateLimiters = rateLimiters != null ? rateLimiters.clone() : new TokenBucket[0];
+    }
+
+    /**
+     * Reports the latency and size of every read, write and transfer call made by the copies from
+     * now on. The clock is only read while a listener is set. Mapped copies between two mappings
+     * make no calls to report.
+     */
+    public void setIoListener(OnIoListener listener) {
+        mIoListener = listener;
+    }
+
     public void duplicate(InputStream is, OutputStream os) throws StreamDuplicationFailedException {
         duplicate(is, os, BUFFER_SIZE, null);
     }
@@ -33,36 +124,617 @@ public class StreamDuplicator {
             throw new IllegalArgumentException("bufferSize cannot be smaller than 1");
         }
 
-        byte[] buffer = new byte[bufferSize];
+        if (mSparseEnabled && os instanceof FileOutputStream) {
+            duplicateSparse(is, (FileOutputStream) os, listener);
+            return;
+        }
+
+        if (mChannelTransferEnabled && isTransferable(is) && os instanceof FileOutputStream) {
+            transfer(((FileInputStream) is).getChannel(), ((FileOutputStream) os).getChannel(), listener);
+            return;
+        }
+
+        byte[] buffer = obtainBuffer(bufferSize);
         int bytesRead;
         try {
             while((bytesRead = read(is, bufferSize, buffer)) != -1) {
                 write(os, buffer, bytesRead);
 
-                if (listener != null) {
-                    listener.onDuplicationProgress(bytesRead);
-                }
+                onChunkCopied(listener, bytesRead);
             }
         } catch (IOException e) {
              throw new StreamDuplicationFailedException(e);
+        } finally {
+            recycleBuffer(buffer);
+        }
+
+    }
+
+    /**
+     * Like duplicate(), but the size of each read/write round, or of each transferTo slice when
+     * the channel path is taken, is picked by an AdaptiveChunkSizer from the expected length of
+     * the data and the throughput measured while copying. Sparse copies keep their fixed size,
+     * which zero detection depends on.
+     * @param expectedLength bytes expected to be read from is, or a negative value if unknown
+     */
+    public void duplicateAdaptive(InputStream is, OutputStream os, long expectedLength, OnDuplicationProgressListener listener) throws StreamDuplicationFailedException {
+        if (mSparseEnabled && os instanceof FileOutputStream) {
+            duplicateSparse(is, (FileOutputStream) os, listener);
+            return;
+        }
+
+        AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(expectedLength);
+
+        if (mChannelTransferEnabled && isTransferable(is) && os instanceof FileOutputStream) {
+            transfer(((FileInputStream) is).getChannel(), ((FileOutputStream) os).getChannel(), sizer, listener);
+            return;
+        }
+
+        byte[] buffer = obtainBuffer(sizer.getMaxChunkSize());
+        int bytesRead;
+        try {
+            sizer.start(System.nanoTime());
+            while((bytesRead = read(is, sizer.getChunkSize(), buffer)) != -1) {
+                write(os, buffer, bytesRead);
+                sizer.onChunkTransferred(bytesRead, System.nanoTime());
+
+                onChunkCopied(listener, bytesRead);
+            }
+        } catch (IOException e) {
+            throw new StreamDuplicationFailedException(e);
+        } finally {
+            recycleBuffer(buffer);
+        }
+    }
+
+    /**
+     * Copies is into every stream of outs, reading it only once. A stream that fails to be written
+     * is left behind while the copy goes on for the others, and its error is returned at its index.
+     * Null streams are skipped. The copy stops early when no stream is left.
+     * @return for each stream of outs, the error it failed with, or null if it got all the data
+     * @throws StreamDuplicationFailedException if is couldn't be read, which fails every stream
+     */
+    public IOException[] duplicateToAll(InputStream is, OutputStream[] outs, long expectedLength, OnDuplicationProgressListener listener) throws StreamDuplicationFailedException {
+        IOException[] errors = new IOException[outs.length];
+        int alive = 0;
+        for (OutputStream os : outs) {
+            if (os != null) {
+                alive++;
+            }
+        }
+
+        byte[] buffer = obtainBuffer(AdaptiveChunkSizer.maxChunkSizeFor(expectedLength));
+        int bytesRead;
+        try {
+            while(alive > 0 && (bytesRead = read(is, buffer.length, buffer)) != -1) {
+                for (int i = 0; i < outs.length; i++) {
+                    if (outs[i] == null || errors[i] != null) {
+                        continue;
+                    }
+
+                    try {
+                        write(outs[i], buffer, bytesRead);
+                    } catch (StreamWriteFailureException e) {
+                        errors[i] = e;
+                        alive--;
+                    }
+                }
+
+                onChunkCopied(listener, bytesRead);
+            }
+        } catch (StreamReadFailureException e) {
+            throw new StreamDuplicationFailedException(e);
+        } finally {
+            recycleBuffer(buffer);
+        }
+
+        return errors;
+    }
+
+    /**
+     * Copies what's left of src, from its current position, into dst using FileChannel.transferTo
+     * in slices of TRANSFER_CHUNK_SIZE bytes. The position of src is advanced past the copied data,
+     * the same way reading the stream would have. Like reading the stream, it goes on until
+     * there's no more data, so a file still being appended to is copied past the size it had.
+     */
+    public void transfer(FileChannel src, FileChannel dst, OnDuplicationProgressListener listener) throws StreamDuplicationFailedException {
+        transfer(src, dst, null, listener);
+    }
+
+    // Slices are sized by sizer when there's one, and are TRANSFER_CHUNK_SIZE bytes otherwise
+    private void transfer(FileChannel src, FileChannel dst, AdaptiveChunkSizer sizer, OnDuplicationProgressListener listener) throws StreamDuplicationFailedException {
+        long position;
+
+        try {
+            position = src.position();
+        } catch (IOException e) {
+            throw new StreamDuplicationFailedException(new StreamReadFailureException(src, e));
+        }
+
+        try {
+            if (sizer != null) {
+                sizer.start(System.nanoTime());
+            }
+
+            while (true) {
+                long count = sizer != null ? sizer.getChunkSize() : TRANSFER_CHUNK_SIZE;
+                long start = ioStart();
+                long transferred = src.transferTo(position, count, dst);
+                onTransferred(start, transferred);
+
+                if (transferred <= 0) {
+                    // End of the data, or the source was truncated while we were copying it
+                    break;
+                }
+
+                position += transferred;
+                if (sizer != null) {
+                    sizer.onChunkTransferred((int) transferred, System.nanoTime());
+                }
+
+                onChunkCopied(listener, (int) transferred);
+            }
+
+            src.position(position);
+        } catch (IOException e) {
+            // transferTo doesn't tell which end failed
+            throw new StreamDuplicationFailedException(e);
+        }
+    }
+
+    /**
+     * Whether is can be copied with transferTo, which only moves data from regular files. Pseudo
+     * files like the ones in /proc and sysfs report a size of 0 and pipes have no position, so
+     * those are read to the end of the stream instead.
+     */
+    private static boolean isTransferable(InputStream is) {
+        if (!(is instanceof FileInputStream)) {
+            return false;
+        }
+
+        try {
+            FileChannel channel = ((FileInputStream) is).getChannel();
+            return channel.size() > 0 && channel.position() >= 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void duplicateSparse(InputStream is, FileOutputStream os, OnDuplicationProgressListener listener) throws StreamDuplicationFailedException {
+        FileChannel dst = os.getChannel();
+        long position;
+
+        try {
+            position = dst.position();
+        } catch (IOException e) {
+            throw new StreamDuplicationFailedException(new StreamWriteFailureException(dst, e));
+        }
+
+        duplicateSparse(is, dst, position, listener);
+    }
+
+    /**
+     * Copies the rest of is into dst starting at dstPosition, leaving holes where the data is all
+     * zeroes, whether sparse mode is enabled or not. A FileInputStream source has its own holes
+     * skipped without reading them when channel transfer is enabled. dst ends up positioned past
+     * the copied data.
+     */
+    public void duplicateSparse(InputStream is, FileChannel dst, long dstPosition, OnDuplicationProgressListener listener) throws StreamDuplicationFailedException {
+        byte[] buffer = obtainBuffer(TRANSFER_CHUNK_SIZE);
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, TRANSFER_CHUNK_SIZE).slice();
+
+        try {
+            if (mChannelTransferEnabled && isTransferable(is)) {
+                dstPosition = transferSparse((FileInputStream) is, dst, dstPosition, byteBuffer, listener);
+            } else {
+                int bytesRead;
+                while ((bytesRead = readFully(is, buffer, TRANSFER_CHUNK_SIZE)) > 0) {
+                    writeSparse(dst, buffer, bytesRead, dstPosition);
+                    dstPosition += bytesRead;
+
+                    onChunkCopied(listener, bytesRead);
+                }
+            }
+
+            finishSparse(dst, dstPosition);
+        } catch (ClosedByInterruptException e) {
+            throw new StreamDuplicationFailedException(new InterruptedException("Sparse copy was interrupted"));
+        } catch (IOException e) {
+            throw new StreamDuplicationFailedException(e);
+        } finally {
+            recycleBuffer(buffer);
+        }
+    }
+
+    // Copies the data regions of the source, jumping over the holes the file system reports
+    private long transferSparse(FileInputStream is, FileChannel dst, long dstPosition, ByteBuffer buffer, OnDuplicationProgressListener listener) throws IOException, StreamDuplicationFailedException {
+        FileChannel src = is.getChannel();
+        FileDescriptor fd;
+        long position;
+        long size;
+
+        try {
+            fd = is.getFD();
+            position = src.position();
+            size = src.size();
+        } catch (IOException e) {
+            throw new StreamReadFailureException(src, e);
+        }
+
+        long offset = dstPosition - position;
+        while (position < size) {
+            long dataStart = FileUtils.seekData(fd, position, size);
+            long dataEnd = dataStart < size ? FileUtils.seekHole(fd, dataStart, size) : size;
+            if (dataEnd <= dataStart) {
+                // There's data at dataStart, so the hole must be a wrong answer
+                dataEnd = size;
+            }
+
+            if (dataStart > position && listener != null) {
+                notifyProgress(listener, dataStart - position);
+            }
+
+            position = dataStart;
+            while (position < dataEnd) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), dataEnd - position));
+
+                int bytesRead = readAt(src, buffer, position);
+                if (bytesRead == -1) {
+                    // Source was truncated while we were copying it
+                    size = position;
+                    break;
+                }
+
+                writeSparse(dst, buffer.array(), bytesRead, position + offset);
+                position += bytesRead;
+
+                onChunkCopied(listener, bytesRead);
+            }
+        }
+
+        try {
+            src.position(size);
+        } catch (IOException e) {
+            throw new StreamReadFailureException(src, e);
         }
 
+        return size + offset;
     }
 
-    private int read(InputStream is, int bufferSize, byte[] buffer) throws StreamReadFailureException {
+    // Writes the blocks of buffer that aren't all zeroes at position, in as few writes as possible
+    private void writeSparse(FileChannel dst, byte[] buffer, int length, long position) throws IOException {
+        int runStart = -1;
+
+        for (int offset = 0; offset < length; offset += SPARSE_BLOCK_SIZE) {
+            int blockLength = Math.min(SPARSE_BLOCK_SIZE, length - offset);
+
+            if (isZero(buffer, offset, blockLength)) {
+                if (runStart != -1) {
+                    writeAt(dst, ByteBuffer.wrap(buffer, runStart, offset - runStart), position + runStart);
+                    runStart = -1;
+                }
+            } else if (runStart == -1) {
+                runStart = offset;
+            }
+        }
+
+        if (runStart != -1) {
+            writeAt(dst, ByteBuffer.wrap(buffer, runStart, length - runStart), position + runStart);
+        }
+    }
+
+    // A trailing hole only exists if the file is extended past it
+    private void finishSparse(FileChannel dst, long end) throws IOException {
         try {
-            return is.read(buffer, 0, bufferSize);
+            if (dst.size() < end) {
+                dst.write(ByteBuffer.allocate(1), end - 1);
+            }
+            dst.position(end);
+        } catch (ClosedByInterruptException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new StreamWriteFailureException(dst, e);
+        }
+    }
+
+    private static boolean isZero(byte[] buffer, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            if (buffer[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Skipped holes count as copied, notified in int sized steps
+    private static void notifyProgress(OnDuplicationProgressListener listener, long bytes) {
+        while (bytes > 0) {
+            int step = (int) Math.min(bytes, Integer.MAX_VALUE);
+            listener.onDuplicationProgress(step);
+            bytes -= step;
+        }
+    }
+
+    // Fills buffer as much as possible, so zero detection stays aligned to SPARSE_BLOCK_SIZE
+    private int readFully(InputStream is, byte[] buffer, int length) throws StreamReadFailureException {
+        int total = 0;
+        while (total < length) {
+            int bytesRead = read(is, length - total, buffer, total);
+            if (bytesRead == -1) {
+                break;
+            }
+            total += bytesRead;
+        }
+        return total;
+    }
+
+    /**
+     * Copies count bytes starting at position from src into the same position of dst, using
+     * positional reads and writes. The channel positions aren't modified, so several threads can
+     * copy different ranges of the same pair of channels at once.
+     *
+     * If the calling thread is interrupted the channels get closed and StreamDuplicationFailedException
+     * is thrown with an InterruptedException as its cause.
+     */
+    public void copyRange(FileChannel src, FileChannel dst, long position, long count, OnDuplicationProgressListener listener) throws StreamDuplicationFailedException {
+        long end = position + count;
+        byte[] array = obtainBuffer(AdaptiveChunkSizer.maxChunkSizeFor(count));
+        ByteBuffer buffer = ByteBuffer.wrap(array);
+
+        try {
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+
+                int bytesRead = readAt(src, buffer, position);
+                if (bytesRead == -1) {
+                    // Source was truncated while we were copying it
+                    break;
+                }
+
+                buffer.flip();
+                if (mSparseEnabled) {
+                    // dst was sized up front, so skipped blocks are already holes
+                    writeSparse(dst, array, bytesRead, position);
+                } else {
+                    writeAt(dst, buffer, position);
+                }
+                position += bytesRead;
+
+                onChunkCopied(listener, bytesRead);
+            }
+        } catch (ClosedByInterruptException e) {
+            throw new StreamDuplicationFailedException(new InterruptedException("Range copy was interrupted"));
+        } catch (IOException e) {
+            throw new StreamDuplicationFailedException(e);
+        } finally {
+            recycleBuffer(array);
+        }
+    }
+
+    /**
+     * Copies count bytes starting at position from src into the same position of dst using
+     * FileChannel.transferTo in slices of TRANSFER_CHUNK_SIZE bytes. Unlike copyRange() it moves
+     * the position of dst, so only one thread at a time can use it on the same dst.
+     */
+    public void transferRange(FileChannel src, FileChannel dst, long position, long count, OnDuplicationProgressListener listener) throws StreamDuplicationFailedException {
+        long end = position + count;
+
+        try {
+            while (position < end) {
+                long chunk = Math.min(TRANSFER_CHUNK_SIZE, end - position);
+
+                // transferTo writes at the position of the target channel
+                dst.position(position);
+                long start = ioStart();
+                long transferred = src.transferTo(position, chunk, dst);
+                onTransferred(start, transferred);
+
+                if (transferred <= 0) {
+                    // Source was truncated while we were copying it
+                    break;
+                }
+
+                position += transferred;
+
+                onChunkCopied(listener, (int) transferred);
+            }
+        } catch (ClosedByInterruptException e) {
+            throw new StreamDuplicationFailedException(new InterruptedException("Range transfer was interrupted"));
+        } catch (IOException e) {
+            // transferTo doesn't tell which end failed
+            throw new StreamDuplicationFailedException(e);
+        }
+    }
+
+    /**
+     * Copies count bytes starting at position from src into the same position of dst through
+     * memory mappings of src, so the data isn't copied into a user space buffer first. At most
+     * windowSize bytes are mapped at once, and each window is unmapped before the next one is
+     * made. With mapDestination dst is mapped as well and the data is moved between mappings,
+     * which requires dst to be at least position + count bytes long already. Otherwise it's
+     * written from the source mapping. The channel positions aren't modified.
+     *
+     * If the calling thread is interrupted the channels get closed and StreamDuplicationFailedException
+     * is thrown with an InterruptedException as its cause.
+     */
+    public void mapRange(FileChannel src, FileChannel dst, long position, long count, int windowSize, boolean mapDestination, OnDuplicationProgressListener listener) throws StreamDuplicationFailedException {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("windowSize cannot be smaller than 1");
+        }
+
+        long end = position + count;
+
+        try {
+            while (position < end) {
+                // Touching a mapping past the end of the file is fatal, so follow its size
+                long length = Math.min(Math.min(windowSize, end - position), sizeOf(src) - position);
+                if (length <= 0) {
+                    // Source was truncated while we were copying it
+                    break;
+                }
+
+                MappedByteBuffer srcMap = null;
+                MappedByteBuffer dstMap = null;
+                try {
+                    srcMap = mapWindow(src, FileChannel.MapMode.READ_ONLY, position, length);
+                    if (mapDestination) {
+                        dstMap = mapWindow(dst, FileChannel.MapMode.READ_WRITE, position, length);
+                        dstMap.put(srcMap);
+                    } else {
+                        writeAt(dst, srcMap, position);
+                    }
+                } finally {
+                    BufferUtils.unmap(srcMap);
+                    BufferUtils.unmap(dstMap);
+                }
+
+                position += length;
+
+                onChunkCopied(listener, (int) length);
+            }
+        } catch (ClosedByInterruptException e) {
+            throw new StreamDuplicationFailedException(new InterruptedException("Mapped copy was interrupted"));
+        } catch (IOException e) {
+            throw new StreamDuplicationFailedException(e);
+        }
+    }
+
+    private long sizeOf(FileChannel src) throws IOException {
+        try {
+            return src.size();
+        } catch (ClosedByInterruptException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new StreamReadFailureException(src, e);
+        }
+    }
+
+    private MappedByteBuffer mapWindow(FileChannel channel, FileChannel.MapMode mode, long position, long length) throws IOException {
+        try {
+            return channel.map(mode, position, length);
+        } catch (ClosedByInterruptException e) {
+            throw e;
+        } catch (IOException e) {
+            if (mode == FileChannel.MapMode.READ_ONLY) {
+                throw new StreamReadFailureException(channel, e);
+            }
+            throw new StreamWriteFailureException(channel, e);
+        }
+    }
+
+    /**
+     * Called by every copy loop after each chunk it copies. Waits for the rate limiters to allow
+     * the chunk and then notifies the listener.
+     */
+    protected void onChunkCopied(OnDuplicationProgressListener listener, int bytesCopied) throws StreamDuplicationFailedException {
+        for (TokenBucket rateLimiter : mRateLimiters) {
+            try {
+                rateLimiter.acquire(bytesCopied);
+            } catch (InterruptedException e) {
+                throw new StreamDuplicationFailedException(e);
+            }
+        }
+
+        if (listener != null) {
+            listener.onDuplicationProgress(bytesCopied);
+        }
+    }
+
+    protected byte[] obtainBuffer(int bufferSize) {
+        if (mBufferPool != null) {
+            return mBufferPool.acquire(bufferSize);
+        }
+        return new byte[bufferSize];
+    }
+
+    protected void recycleBuffer(byte[] buffer) {
+        if (mBufferPool != null) {
+            mBufferPool.release(buffer);
+        }
+    }
+
+    protected int read(InputStream is, int bufferSize, byte[] buffer) throws StreamReadFailureException {
+        return read(is, bufferSize, buffer, 0);
+    }
+
+    private int read(InputStream is, int length, byte[] buffer, int offset) throws StreamReadFailureException {
+        long start = ioStart();
+        int bytesRead;
+        try {
+            bytesRead = is.read(buffer, offset, length);
         } catch (IOException e) {
             throw new StreamReadFailureException(is);
         }
+        onRead(start, bytesRead);
+        return bytesRead;
     }
 
-    private void write(OutputStream os, byte[] buffer, int bytesRead) throws StreamWriteFailureException {
+    protected void write(OutputStream os, byte[] buffer, int bytesRead) throws StreamWriteFailureException {
+        long start = ioStart();
         try {
             os.write(buffer, 0, bytesRead);
         } catch (IOException e) {
-            throw new StreamWriteFailureException(os);
+            throw new StreamWriteFailureException(os, e);
         }
+        onWritten(start, bytesRead);
+    }
 
+    protected int readAt(FileChannel src, ByteBuffer buffer, long position) throws IOException {
+        long start = ioStart();
+        int bytesRead;
+        try {
+            bytesRead = src.read(buffer, position);
+        } catch (ClosedByInterruptException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new StreamReadFailureException(src, e);
+        }
+        onRead(start, bytesRead);
+        return bytesRead;
+    }
+
+    protected void writeAt(FileChannel dst, ByteBuffer buffer, long position) throws IOException {
+        long start = ioStart();
+        int length = buffer.remaining();
+        try {
+            while (buffer.hasRemaining()) {
+                position += dst.write(buffer, position);
+            }
+        } catch (ClosedByInterruptException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new StreamWriteFailureException(dst, e);
+        }
+        onWritten(start, length);
+    }
+
+    // The clock is only read while someone listens, 0 means it wasn't
+    private long ioStart() {
+        return mIoListener != null ? System.nanoTime() : 0;
+    }
+
+    // End of stream reads are left out, they would only skew the sizes
+    private void onRead(long start, int bytes) {
+        OnIoListener listener = mIoListener;
+        if (start != 0 && listener != null && bytes > 0) {
+            listener.onRead(System.nanoTime() - start, bytes);
+        }
+    }
+
+    private void onWritten(long start, int bytes) {
+        OnIoListener listener = mIoListener;
+        if (start != 0 && listener != null) {
+            listener.onWrite(System.nanoTime() - start, bytes);
+        }
+    }
+
+    private void onTransferred(long start, long bytes) {
+        OnIoListener listener = mIoListener;
+        if (start != 0 && listener != null && bytes > 0) {
+            listener.onTransfer(System.nanoTime() - start, bytes);
+        }
     }
 }
@@ -2,6 +2,7 @@ package com.adyrsoft.soul.utils;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channel;
 
 /**
  * Created by Adrian on 18/03/2016.
@@ -14,4 +15,8 @@ public class StreamReadFailureException extends IOException {
     public StreamReadFailureException(InputStream is, Throwable e) {
         super("Problem ocurred trying to read from stream " + is.toString(), e);
     }
+
+    public StreamReadFailureException(Channel channel, Throwable e) {
+        super("Problem ocurred trying to read from channel " + channel.toString(), e);
+    }
 }
@@ -2,6 +2,7 @@ package com.adyrsoft.soul.utils;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.Channel;
 
 /**
  * Created by Adrian on 18/03/2016.
@@ -14,4 +15,8 @@ public class StreamWriteFailureException extends IOException {
     public StreamWriteFailureException(OutputStream os, Throwable e) {
         super("Problem occurred trying to write to stream " +os.toString(), e);
     }
+
+    public StreamWriteFailureException(Channel channel, Throwable e) {
+        super("Problem occurred trying to write to channel " + channel.toString(), e);
+    }
 }
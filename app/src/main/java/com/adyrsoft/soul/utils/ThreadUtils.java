@@ -0,0 +1,30 @@
+package com.adyrsoft.soul.utils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Helpers for the worker pools used while running file system tasks
+ */
+public class ThreadUtils {
+    /**
+     * Blocks until every thread of an already shut down executor has finished. Interruptions don't
+     * end the wait, but the interrupted status of the calling thread is restored afterwards.
+     */
+    public static void awaitTerminationUninterruptibly(ExecutorService executor) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.adyrsoft.soul.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps the throughput of whoever draws from it to a number of bytes per second. Up to a
+ * second worth of unused bytes is saved up, so short pauses can be made up for with a burst.
+ * The rate can be changed at any time, also while other threads are waiting on it. Safe to share
+ * between threads.
+ */
+public class TokenBucket {
+    public static final long UNLIMITED = 0;
+
+    // Longest a caller sleeps before checking the rate again
+    private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private long mRate;
+    private double mTokens;
+    private long mLastRefillNanos;
+
+    public TokenBucket() {
+        this(UNLIMITED);
+    }
+
+    /**
+     * @param bytesPerSecond maximum throughput, or UNLIMITED
+     */
+    public TokenBucket(long bytesPerSecond) {
+        setRate(bytesPerSecond);
+    }
+
+    public synchronized long getRate() {
+        return mRate;
+    }
+
+    /**
+     * @param bytesPerSecond maximum throughput, or UNLIMITED. Negative values mean UNLIMITED too.
+     */
+    public synchronized void setRate(long bytesPerSecond) {
+        mRate = Math.max(UNLIMITED, bytesPerSecond);
+        mTokens = 0;
+        mLastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Accounts bytes already transferred, or about to be, waiting first while the previous
+     * transfers are still over the rate. The bytes themselves are never refused, whatever their
+     * number: they are paid for by whoever draws next.
+     */
+    public void acquire(int bytes) throws InterruptedException {
+        while (true) {
+            long waitNanos;
+
+            synchronized (this) {
+                if (mRate == UNLIMITED) {
+                    return;
+                }
+
+                refill(System.nanoTime());
+                if (mTokens >= 0) {
+                    mTokens -= bytes;
+                    return;
+                }
+
+                waitNanos = Math.min(MAX_WAIT_NANOS, (long) (-mTokens * TimeUnit.SECONDS.toNanos(1) / mRate));
+            }
+
+            TimeUnit.NANOSECONDS.sleep(Math.max(1, waitNanos));
+        }
+    }
+
+    private void refill(long nowNanos) {
+        long elapsed = nowNanos - mLastRefillNanos;
+        mLastRefillNanos = nowNanos;
+        mTokens = Math.min(mRate, mTokens + (double) elapsed * mRate / TimeUnit.SECONDS.toNanos(1));
+    }
+}
@@ -0,0 +1,253 @@
+package com.adyrsoft.soul.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records a timeline of events in a ring buffer and writes it in the Chrome trace event format,
+ * which chrome://tracing and Perfetto open. It's off until enabled, and recording while off costs
+ * a volatile read. While on, it holds at most its capacity of events, the oldest ones being
+ * overwritten, and the buffer is only allocated the first time it's enabled. Every event keeps the
+ * thread it was recorded from. Safe to record from several threads at once.
+ */
+public class TraceRecorder {
+    public static final int DEFAULT_CAPACITY = 16 * 1024;
+
+    // Duration of the events that mark a moment instead of a span
+    private static final long INSTANT = -1;
+
+    private final int mCapacity;
+    private volatile boolean mEnabled;
+    private long[] mStartNanos;
+    private long[] mDurationNanos;
+    private long[] mThreadIds;
+    private String[] mThreadNames;
+    private String[] mCategories;
+    private String[] mNames;
+    private String[] mArgNames;
+    private Object[] mArgValues;
+    // Events ever recorded, the next one goes to mRecorded % mCapacity
+    private long mRecorded;
+
+    public TraceRecorder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public TraceRecorder(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity cannot be smaller than 1");
+        }
+
+        mCapacity = capacity;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Starts or stops recording. The events recorded so far are kept either way.
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        if (enabled && mNames == null) {
+            mStartNanos = new long[mCapacity];
+            mDurationNanos = new long[mCapacity];
+            mThreadIds = new long[mCapacity];
+            mThreadNames = new String[mCapacity];
+            mCategories = new String[mCapacity];
+            mNames = new String[mCapacity];
+            mArgNames = new String[mCapacity];
+            mArgValues = new Object[mCapacity];
+        }
+        mEnabled = enabled;
+    }
+
+    /**
+     * Drops every event recorded so far
+     */
+    public synchronized void clear() {
+        if (mNames != null) {
+            for (int i = 0; i < mCapacity; i++) {
+                mThreadNames[i] = null;
+                mCategories[i] = null;
+                mNames[i] = null;
+                mArgNames[i] = null;
+                mArgValues[i] = null;
+            }
+        }
+        mRecorded = 0;
+    }
+
+    /**
+     * Marks a moment of the calling thread
+     * @param argName name of a value shown with the event, or null
+     */
+    public void instant(String category, String name, String argName, Object argValue) {
+        if (mEnabled) {
+            record(category, name, System.nanoTime(), INSTANT, argName, argValue);
+        }
+    }
+
+    /**
+     * Records a span of the calling thread that started at startNanos, from System.nanoTime(),
+     * and ends now
+     * @param argName name of a value shown with the event, or null
+     */
+    public void complete(String category, String name, long startNanos, String argName, Object argValue) {
+        if (mEnabled) {
+            record(category, name, startNanos, System.nanoTime() - startNanos, argName, argValue);
+        }
+    }
+
+    private synchronized void record(String category, String name, long startNanos, long durationNanos, String argName, Object argValue) {
+        // Disabled while waiting for the lock
+        if (!mEnabled) {
+            return;
+        }
+
+        Thread thread = Thread.currentThread();
+        int index = (int) (mRecorded % mCapacity);
+        mStartNanos[index] = startNanos;
+        mDurationNanos[index] = durationNanos;
+        mThreadIds[index] = thread.getId();
+        mThreadNames[index] = thread.getName();
+        mCategories[index] = category;
+        mNames[index] = name;
+        mArgNames[index] = argName;
+        mArgValues[index] = argValue;
+        mRecorded++;
+    }
+
+    /**
+     * Writes the recorded events, oldest first, as a Chrome trace event JSON object. The events
+     * are copied first, so recording goes on while they are written.
+     * @param pid process the events are shown under
+     */
+    public void writeJson(Writer writer, int pid) throws IOException {
+        TraceRecorder snapshot = snapshot();
+        int count = (int) Math.min(snapshot.mRecorded, mCapacity);
+        int first = (int) (snapshot.mRecorded - count);
+
+        writer.write("{\"traceEvents\":[");
+
+        Map<Long, String> threadNames = new LinkedHashMap<>();
+        boolean firstEvent = true;
+        for (int i = 0; i < count; i++) {
+            int index = (first + i) % mCapacity;
+            threadNames.put(snapshot.mThreadIds[index], snapshot.mThreadNames[index]);
+
+            if (!firstEvent) {
+                writer.write(',');
+            }
+            firstEvent = false;
+            snapshot.writeEvent(writer, index, pid);
+        }
+
+        // Names the thread tracks after the threads that recorded them
+        for (Map.Entry<Long, String> thread : threadNames.entrySet()) {
+            if (!firstEvent) {
+                writer.write(',');
+            }
+            firstEvent = false;
+            writer.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":" + pid + ",\"tid\":" + thread.getKey() + ",\"args\":{\"name\":");
+            writeString(writer, thread.getValue());
+            writer.write("}}");
+        }
+
+        writer.write("],\"displayTimeUnit\":\"ms\"}");
+        writer.flush();
+    }
+
+    private synchronized TraceRecorder snapshot() {
+        TraceRecorder snapshot = new TraceRecorder(mCapacity);
+        snapshot.mRecorded = mRecorded;
+        if (mNames != null) {
+            snapshot.mStartNanos = mStartNanos.clone();
+            snapshot.mDurationNanos = mDurationNanos.clone();
+            snapshot.mThreadIds = mThreadIds.clone();
+            snapshot.mThreadNames = mThreadNames.clone();
+            snapshot.mCategories = mCategories.clone();
+            snapshot.mNames = mNames.clone();
+            snapshot.mArgNames = mArgNames.clone();
+            snapshot.mArgValues = mArgValues.clone();
+        }
+        return snapshot;
+    }
+
+    private void writeEvent(Writer writer, int index, int pid) throws IOException {
+        writer.write("{\"name\":");
+        writeString(writer, mNames[index]);
+        writer.write(",\"cat\":");
+        writeString(writer, mCategories[index]);
+
+        if (mDurationNanos[index] == INSTANT) {
+            writer.write(",\"ph\":\"i\",\"s\":\"t\"");
+        } else {
+            writer.write(",\"ph\":\"X\",\"dur\":" + toMicros(mDurationNanos[index]));
+        }
+
+        writer.write(",\"ts\":" + toMicros(mStartNanos[index]) + ",\"pid\":" + pid + ",\"tid\":" + mThreadIds[index]);
+
+        if (mArgNames[index] != null) {
+            writer.write(",\"args\":{");
+            writeString(writer, mArgNames[index]);
+            writer.write(':');
+            Object value = mArgValues[index];
+            if (value instanceof Number || value instanceof Boolean) {
+                writer.write(String.valueOf(value));
+            } else {
+                writeString(writer, String.valueOf(value));
+            }
+            writer.write('}');
+        }
+
+        writer.write('}');
+    }
+
+    // Trace timestamps are microseconds, the fraction keeps the nanoseconds
+    private static String toMicros(long nanos) {
+        String fraction = String.valueOf(Math.abs(nanos % 1000));
+        while (fraction.length() < 3) {
+            fraction = "0" + fraction;
+        }
+        return (nanos < 0 ? "-" : "") + Math.abs(nanos / 1000) + "." + fraction;
+    }
+
+    private static void writeString(Writer writer, String value) throws IOException {
+        if (value == null) {
+            writer.write("null");
+            return;
+        }
+
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        writer.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        writer.write(c);
+                    }
+            }
+        }
+        writer.write('"');
+    }
+}
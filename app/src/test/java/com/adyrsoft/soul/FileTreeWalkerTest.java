@@ -0,0 +1,81 @@
+package com.adyrsoft.soul;
+
+import com.adyrsoft.soul.utils.FileTreeWalker;
+import com.adyrsoft.soul.utils.ParallelTreeScanner;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class FileTreeWalkerTest {
+    @Test
+    public void skipsExcludedFoldersCreatedWhileWalking() throws IOException, InterruptedException {
+        File root = createTempDir();
+        File sub = new File(root, "sub");
+        Assert.assertTrue(sub.mkdir());
+        writeFile(new File(root, "file"), 10);
+        // Where copying root into sub puts the copy
+        File copy = new File(sub, root.getName());
+
+        FileTreeWalker walker = new FileTreeWalker(Collections.singletonList(root), FileTreeWalker.Order.PRE_ORDER, null);
+        walker.setExcludedFolders(Collections.singletonList(copy));
+
+        List<File> walked = new ArrayList<>();
+        File entry;
+        while ((entry = walker.next()) != null) {
+            walked.add(entry);
+            // Recreates each folder under the copy as it's found, like a copy does
+            if (entry.isDirectory()) {
+                String relative = root.toURI().relativize(entry.toURI()).getPath();
+                new File(copy, relative).mkdirs();
+            }
+            Assert.assertTrue("Walked into the copy of the tree", walked.size() < 100);
+        }
+
+        Assert.assertEquals(3, walked.size());
+        Assert.assertFalse(walked.contains(copy));
+        Assert.assertTrue(walked.contains(sub));
+    }
+
+    @Test
+    public void scannerLeavesExcludedFoldersOut() throws IOException, InterruptedException {
+        File root = createTempDir();
+        File excluded = new File(root, "excluded");
+        Assert.assertTrue(excluded.mkdir());
+        writeFile(new File(excluded, "big"), 1000);
+        writeFile(new File(root, "small"), 10);
+
+        ParallelTreeScanner scanner = new ParallelTreeScanner(Collections.singletonList(root), 2);
+        scanner.setExcludedFolders(Collections.singletonList(excluded));
+        scanner.start();
+        for (int i = 0; i < 500 && !scanner.isFinished(); i++) {
+            Thread.sleep(10);
+        }
+
+        Assert.assertTrue(scanner.isFinished());
+        Assert.assertEquals(2, scanner.getEntries());
+        Assert.assertEquals(10, scanner.getBytes());
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("walk", null);
+        Assert.assertTrue(dir.delete() && dir.mkdir());
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    private static void writeFile(File file, int length) throws IOException {
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(new byte[length]);
+        } finally {
+            os.close();
+        }
+    }
+}
@@ -1,14 +1,32 @@
 package com.adyrsoft.soul;
 
+import com.adyrsoft.soul.utils.AdaptiveChunkSizer;
+import com.adyrsoft.soul.utils.BufferPool;
+import com.adyrsoft.soul.utils.ContentDigest;
+import com.adyrsoft.soul.utils.DeltaDuplicator;
+import com.adyrsoft.soul.utils.PipelinedStreamDuplicator;
 import com.adyrsoft.soul.utils.StreamDuplicationFailedException;
 import com.adyrsoft.soul.utils.StreamDuplicator;
+import com.adyrsoft.soul.utils.StreamReadFailureException;
+import com.adyrsoft.soul.utils.TokenBucket;
 
 import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -61,7 +79,557 @@ public class StreamDuplicatorTest {
         Assert.assertArrayEquals("Array bytes not equal", inputData, os.toByteArray());
     }
 
+    @Test
+    public void channelTransferCopiesFiles() throws StreamDuplicationFailedException, IOException {
+        final int dataSize = StreamDuplicator.TRANSFER_CHUNK_SIZE * 2 + DATA_SIZE;
+        byte[] inputData = new byte[dataSize];
 
-}
+        for(int i = 0; i < dataSize; i++) {
+            inputData[i] = (byte)(Math.random() * 255);
+        }
+
+        File srcFile = File.createTempFile("src", null);
+        File dstFile = File.createTempFile("dst", null);
+        srcFile.deleteOnExit();
+        dstFile.deleteOnExit();
+
+        FileOutputStream srcWriter = new FileOutputStream(srcFile);
+        srcWriter.write(inputData);
+        srcWriter.close();
+
+        FileInputStream is = new FileInputStream(srcFile);
+        FileOutputStream os = new FileOutputStream(dstFile);
+        StreamDuplicator duplicator = new StreamDuplicator();
+
+        final AtomicInteger totalCopied = new AtomicInteger();
+        final AtomicInteger notifications = new AtomicInteger();
+        StreamDuplicator.OnDuplicationProgressListener listener = new StreamDuplicator.OnDuplicationProgressListener() {
+            @Override
+            public void onDuplicationProgress(int bytesCopied) {
+                totalCopied.addAndGet(bytesCopied);
+                notifications.incrementAndGet();
+            }
+        };
+
+        duplicator.duplicate(is, os, listener);
+        is.close();
+        os.close();
+
+        Assert.assertEquals("Copied data length doesn't match file size", dataSize, totalCopied.get());
+        Assert.assertEquals("Progress wasn't notified once per transfer chunk", 3, notifications.get());
+
+        byte[] outputData = new byte[dataSize];
+        FileInputStream dstReader = new FileInputStream(dstFile);
+        int read = 0;
+        while (read < dataSize) {
+            read += dstReader.read(outputData, read, dataSize - read);
+        }
+        Assert.assertEquals("Destination has trailing data", -1, dstReader.read());
+        dstReader.close();
+
+        Assert.assertTrue("File bytes not equal", Arrays.equals(inputData, outputData));
+    }
+
+    @Test
+    public void reusesPooledBuffers() throws StreamDuplicationFailedException {
+        byte[] inputData = new byte[DATA_SIZE];
+        BufferPool pool = new BufferPool(StreamDuplicator.BUFFER_SIZE, StreamDuplicator.BUFFER_SIZE, StreamDuplicator.BUFFER_SIZE);
+        StreamDuplicator duplicator = new StreamDuplicator(pool);
+
+        for (int i = 0; i < 3; i++) {
+            ByteArrayOutputStream os = new ByteArrayOutputStream(DATA_SIZE);
+            duplicator.duplicate(new ByteArrayInputStream(inputData), os);
+            Assert.assertArrayEquals("Array bytes not equal", inputData, os.toByteArray());
+        }
+
+        Assert.assertEquals("Only the first copy should allocate a buffer", 1, pool.getMissCount());
+        Assert.assertEquals("Following copies should reuse the pooled buffer", 2, pool.getHitCount());
+        Assert.assertEquals("Buffer wasn't given back to the pool", 1, pool.getSize());
+    }
+
+    @Test
+    public void adaptiveDuplicationCopiesData() throws StreamDuplicationFailedException {
+        final int dataSize = AdaptiveChunkSizer.MAX_CHUNK_SIZE * 3 + 17;
+        byte[] inputData = new byte[dataSize];
+
+        for(int i = 0; i < dataSize; i++) {
+            inputData[i] = (byte)(Math.random() * 255);
+        }
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream(dataSize);
+        StreamDuplicator duplicator = new StreamDuplicator();
+
+        duplicator.duplicateAdaptive(new ByteArrayInputStream(inputData), os, dataSize, null);
+
+        Assert.assertArrayEquals("Array bytes not equal", inputData, os.toByteArray());
+    }
+
+    @Test
+    public void chunkSizeFollowsFileLengthAndThroughput() {
+        Assert.assertEquals(AdaptiveChunkSizer.MIN_CHUNK_SIZE, AdaptiveChunkSizer.maxChunkSizeFor(200));
+        Assert.assertEquals(8192, AdaptiveChunkSizer.maxChunkSizeFor(5000));
+        Assert.assertEquals(AdaptiveChunkSizer.MAX_CHUNK_SIZE, AdaptiveChunkSizer.maxChunkSizeFor(-1));
+        Assert.assertEquals(AdaptiveChunkSizer.MAX_CHUNK_SIZE, AdaptiveChunkSizer.maxChunkSizeFor(1L << 33));
+
+        AdaptiveChunkSizer smallFile = new AdaptiveChunkSizer(200);
+        Assert.assertEquals(AdaptiveChunkSizer.MIN_CHUNK_SIZE, smallFile.getChunkSize());
+
+        // Throughput doubles each time the chunk size does, so it should keep growing up to the top
+        AdaptiveChunkSizer growing = new AdaptiveChunkSizer(1L << 30);
+        long now = 0;
+        growing.start(now);
+        while (growing.getChunkSize() < AdaptiveChunkSizer.MAX_CHUNK_SIZE) {
+            int chunk = growing.getChunkSize();
+            now += 100000000L;
+            growing.onChunkTransferred(chunk, now);
+        }
+        Assert.assertEquals(AdaptiveChunkSizer.MAX_CHUNK_SIZE, growing.getChunkSize());
+
+        // Throughput drops after the first increase, so it should go back and stay there
+        AdaptiveChunkSizer regressing = new AdaptiveChunkSizer(1L << 30);
+        now = 0;
+        regressing.start(now);
+        int initial = regressing.getChunkSize();
+        now += 100000000L;
+        regressing.onChunkTransferred(initial, now);
+        now += 400000000L;
+        regressing.onChunkTransferred(regressing.getChunkSize(), now);
+        Assert.assertEquals(initial, regressing.getChunkSize());
+        now += 100000000L;
+        regressing.onChunkTransferred(initial * 8, now);
+        Assert.assertEquals(initial, regressing.getChunkSize());
+    }
+
+    @Test
+    public void pipelinedDuplicationCopiesData() throws StreamDuplicationFailedException {
+        final int dataSize = PipelinedStreamDuplicator.PIPELINE_CHUNK_SIZE * PipelinedStreamDuplicator.RING_SIZE * 3 + 5;
+        byte[] inputData = new byte[dataSize];
+
+        for(int i = 0; i < dataSize; i++) {
+            inputData[i] = (byte)(Math.random() * 255);
+        }
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream(dataSize);
+            StreamDuplicator duplicator = new PipelinedStreamDuplicator(null, executor);
+
+            final AtomicInteger totalCopied = new AtomicInteger();
+            duplicator.duplicateAdaptive(new ByteArrayInputStream(inputData), os, dataSize, new StreamDuplicator.OnDuplicationProgressListener() {
+                @Override
+                public void onDuplicationProgress(int bytesCopied) {
+                    totalCopied.addAndGet(bytesCopied);
+                }
+            });
+
+            Assert.assertEquals("Copied data length doesn't match DATA_SIZE", dataSize, totalCopied.get());
+            Assert.assertArrayEquals("Array bytes not equal", inputData, os.toByteArray());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void pipelinedDuplicationReportsReadFailures() {
+        InputStream failingStream = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Broken source");
+            }
+        };
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            StreamDuplicator duplicator = new PipelinedStreamDuplicator(null, executor);
+            duplicator.duplicateAdaptive(failingStream, new ByteArrayOutputStream(), -1, null);
+            Assert.fail("Read failure wasn't reported");
+        } catch (StreamDuplicationFailedException e) {
+            Assert.assertTrue("Read failure wasn't reported as such", e.getCause() instanceof StreamReadFailureException);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void copiesRangesAtTheirPosition() throws StreamDuplicationFailedException, IOException {
+        final int dataSize = DATA_SIZE * 3 + 100;
+        byte[] inputData = new byte[dataSize];
+
+        for(int i = 0; i < dataSize; i++) {
+            inputData[i] = (byte)(Math.random() * 255);
+        }
+
+        File srcFile = File.createTempFile("src", null);
+        File dstFile = File.createTempFile("dst", null);
+        srcFile.deleteOnExit();
+        dstFile.deleteOnExit();
+
+        RandomAccessFile src = new RandomAccessFile(srcFile, "rw");
+        src.write(inputData);
+        RandomAccessFile dst = new RandomAccessFile(dstFile, "rw");
+        dst.setLength(dataSize);
+
+        StreamDuplicator duplicator = new StreamDuplicator();
+        final AtomicInteger totalCopied = new AtomicInteger();
+        StreamDuplicator.OnDuplicationProgressListener listener = new StreamDuplicator.OnDuplicationProgressListener() {
+            @Override
+            public void onDuplicationProgress(int bytesCopied) {
+                totalCopied.addAndGet(bytesCopied);
+            }
+        };
+
+        // Ranges copied out of order must still land at their own offsets
+        duplicator.copyRange(src.getChannel(), dst.getChannel(), DATA_SIZE * 2, dataSize - DATA_SIZE * 2, listener);
+        duplicator.copyRange(src.getChannel(), dst.getChannel(), 0, DATA_SIZE, listener);
+        duplicator.copyRange(src.getChannel(), dst.getChannel(), DATA_SIZE, DATA_SIZE, listener);
+
+        byte[] outputData = new byte[dataSize];
+        dst.seek(0);
+        dst.readFully(outputData);
+        src.close();
+        dst.close();
+
+        Assert.assertEquals("Copied data length doesn't match file size", dataSize, totalCopied.get());
+        Assert.assertArrayEquals("File bytes not equal", inputData, outputData);
+    }
+
+    @Test
+    public void digestsDataWhileDuplicating() throws StreamDuplicationFailedException, NoSuchAlgorithmException {
+        final int dataSize = DATA_SIZE * 5 + 3;
+        byte[] inputData = new byte[dataSize];
+
+        for(int i = 0; i < dataSize; i++) {
+            inputData[i] = (byte)(Math.random() * 255);
+        }
+
+        ContentDigest digest = ContentDigest.getInstance(ContentDigest.SHA256);
+        ByteArrayOutputStream os = new ByteArrayOutputStream(dataSize);
+        StreamDuplicator duplicator = new StreamDuplicator();
+
+        duplicator.duplicateAdaptive(digest.wrap(new ByteArrayInputStream(inputData)), os, dataSize, null);
+
+        Assert.assertArrayEquals("Array bytes not equal", inputData, os.toByteArray());
+        Assert.assertArrayEquals("Digest doesn't match the data",
+                MessageDigest.getInstance(ContentDigest.SHA256).digest(inputData), digest.digest());
+
+        ContentDigest crc = ContentDigest.getInstance(ContentDigest.CRC32);
+        crc.update("123456789".getBytes(), 0, 9);
+        Assert.assertEquals("CRC32 check value doesn't match", "cbf43926", ContentDigest.toHex(crc.digest()));
+    }
+
+    @Test
+    public void deltaUpdateRewritesOnlyChangedBlocks() throws StreamDuplicationFailedException, IOException {
+        final int blockSize = DATA_SIZE;
+        final int dataSize = blockSize * 8 + 100;
+        byte[] oldData = new byte[dataSize + blockSize];
+
+        for(int i = 0; i < oldData.length; i++) {
+            oldData[i] = (byte)(Math.random() * 255);
+        }
+
+        // Same file with one byte changed in the third block, and the trailing block removed
+        byte[] newData = Arrays.copyOf(oldData, dataSize);
+        newData[blockSize * 2 + 10]++;
+
+        File srcFile = File.createTempFile("src", null);
+        File dstFile = File.createTempFile("dst", null);
+        srcFile.deleteOnExit();
+        dstFile.deleteOnExit();
+
+        RandomAccessFile src = new RandomAccessFile(srcFile, "rw");
+        src.write(newData);
+        RandomAccessFile dst = new RandomAccessFile(dstFile, "rw");
+        dst.write(oldData);
+
+        final AtomicInteger deltaTotal = new AtomicInteger();
+        final AtomicInteger savedTotal = new AtomicInteger();
+        DeltaDuplicator duplicator = new DeltaDuplicator(new StreamDuplicator(), blockSize);
+        long written = duplicator.update(src.getChannel(), dst.getChannel(), new DeltaDuplicator.OnDeltaProgressListener() {
+            @Override
+            public void onDeltaProgress(int deltaBytes, int savedBytes) {
+                deltaTotal.addAndGet(deltaBytes);
+                savedTotal.addAndGet(savedBytes);
+            }
+        });
+
+        byte[] outputData = new byte[(int) dst.length()];
+        dst.seek(0);
+        dst.readFully(outputData);
+        src.close();
+        dst.close();
+
+        Assert.assertArrayEquals("File bytes not equal", newData, outputData);
+        Assert.assertEquals("Only the changed block should be written", blockSize, written);
+        Assert.assertEquals("Delta bytes don't match the written bytes", written, deltaTotal.get());
+        Assert.assertEquals("Saved bytes don't match the untouched bytes", dataSize - blockSize, savedTotal.get());
+    }
 
+    @Test
+    public void sparseCopyLeavesZeroBlocksUnwritten() throws StreamDuplicationFailedException, IOException {
+        final int blockSize = StreamDuplicator.SPARSE_BLOCK_SIZE;
+        final int dataSize = blockSize * 6;
+        byte[] inputData = new byte[dataSize];
+
+        // Data only in the second and fourth blocks, the file ends with a hole
+        for(int i = blockSize; i < blockSize * 2; i++) {
+            inputData[i] = (byte)(Math.random() * 255);
+        }
+        inputData[blockSize * 3 + 7] = 1;
+
+        File srcFile = File.createTempFile("src", null);
+        File dstFile = File.createTempFile("dst", null);
+        srcFile.deleteOnExit();
+        dstFile.deleteOnExit();
+
+        FileOutputStream srcOs = new FileOutputStream(srcFile);
+        srcOs.write(inputData);
+        srcOs.close();
+
+        StreamDuplicator duplicator = new StreamDuplicator();
+        duplicator.setSparseEnabled(true);
+
+        final AtomicInteger totalCopied = new AtomicInteger();
+        StreamDuplicator.OnDuplicationProgressListener listener = new StreamDuplicator.OnDuplicationProgressListener() {
+            @Override
+            public void onDuplicationProgress(int bytesCopied) {
+                totalCopied.addAndGet(bytesCopied);
+            }
+        };
+
+        // Channel path, then the buffered one
+        for (boolean channelTransfer : new boolean[] { true, false }) {
+            duplicator.setChannelTransferEnabled(channelTransfer);
+            totalCopied.set(0);
+
+            FileInputStream is = new FileInputStream(srcFile);
+            FileOutputStream os = new FileOutputStream(dstFile);
+            duplicator.duplicate(is, os, listener);
+            is.close();
+            os.close();
+
+            byte[] outputData = new byte[(int) dstFile.length()];
+            RandomAccessFile dst = new RandomAccessFile(dstFile, "r");
+            dst.readFully(outputData);
+            dst.close();
+
+            Assert.assertEquals("Copied data length doesn't match file size", dataSize, totalCopied.get());
+            Assert.assertArrayEquals("File bytes not equal", inputData, outputData);
+        }
+    }
+
+    @Test
+    public void mappedRangeIsSameAsSource() throws StreamDuplicationFailedException, IOException {
+        final int windowSize = DATA_SIZE;
+        final int dataSize = windowSize * 3 + 17;
+        byte[] inputData = new byte[dataSize];
+
+        for(int i = 0; i < dataSize; i++) {
+            inputData[i] = (byte)(Math.random() * 255);
+        }
+
+        File srcFile = File.createTempFile("src", null);
+        srcFile.deleteOnExit();
+
+        RandomAccessFile src = new RandomAccessFile(srcFile, "rw");
+        src.write(inputData);
+
+        StreamDuplicator duplicator = new StreamDuplicator();
+        final AtomicInteger totalCopied = new AtomicInteger();
+        StreamDuplicator.OnDuplicationProgressListener listener = new StreamDuplicator.OnDuplicationProgressListener() {
+            @Override
+            public void onDuplicationProgress(int bytesCopied) {
+                totalCopied.addAndGet(bytesCopied);
+            }
+        };
+
+        // Written from the source mapping, then with both ends mapped
+        for (boolean mapDestination : new boolean[] { false, true }) {
+            File dstFile = File.createTempFile("dst", null);
+            dstFile.deleteOnExit();
+            RandomAccessFile dst = new RandomAccessFile(dstFile, "rw");
+            if (mapDestination) {
+                dst.setLength(dataSize);
+            }
+            totalCopied.set(0);
+
+            duplicator.mapRange(src.getChannel(), dst.getChannel(), 0, dataSize, windowSize, mapDestination, listener);
+
+            byte[] outputData = new byte[(int) dst.length()];
+            dst.seek(0);
+            dst.readFully(outputData);
+            dst.close();
+
+            Assert.assertEquals("Copied data length doesn't match file size", dataSize, totalCopied.get());
+            Assert.assertArrayEquals("File bytes not equal", inputData, outputData);
+        }
+
+        src.close();
+    }
+
+    @Test
+    public void rateLimitedDuplicationIsThrottled() throws StreamDuplicationFailedException {
+        final int dataSize = DATA_SIZE * 16;
+        final long rate = dataSize * 4;
+        byte[] inputData = new byte[dataSize];
+
+        for(int i = 0; i < dataSize; i++) {
+            inputData[i] = (byte)(Math.random() * 255);
+        }
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream(dataSize);
+        StreamDuplicator duplicator = new StreamDuplicator();
+        TokenBucket limiter = new TokenBucket(rate);
+        duplicator.setRateLimiters(limiter, new TokenBucket());
+
+        long start = System.nanoTime();
+        // Twice the data the rate allows in a quarter of a second
+        duplicator.duplicate(new ByteArrayInputStream(inputData), os, DATA_SIZE);
+        duplicator.duplicate(new ByteArrayInputStream(inputData), os, DATA_SIZE);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        Assert.assertEquals("Copied data length doesn't match", dataSize * 2, os.size());
+        Assert.assertTrue("Copy wasn't throttled, took " + elapsedMillis + "ms", elapsedMillis >= 400);
+
+        // Lifting the limit lets the next copy run at full speed
+        limiter.setRate(TokenBucket.UNLIMITED);
+        start = System.nanoTime();
+        duplicator.duplicate(new ByteArrayInputStream(inputData), os, DATA_SIZE);
+        elapsedMillis = (System.nanoTime() - start) / 1000000;
 
+        Assert.assertTrue("Copy was still throttled, took " + elapsedMillis + "ms", elapsedMillis < 200);
+    }
+
+    @Test
+    public void fanOutKeepsWritingWhenADestinationFails() throws StreamDuplicationFailedException {
+        final int dataSize = DATA_SIZE * 4;
+        byte[] inputData = new byte[dataSize];
+
+        for(int i = 0; i < dataSize; i++) {
+            inputData[i] = (byte)(Math.random() * 255);
+        }
+
+        ByteArrayOutputStream first = new ByteArrayOutputStream(dataSize);
+        ByteArrayOutputStream last = new ByteArrayOutputStream(dataSize);
+        OutputStream failing = new OutputStream() {
+            private int mWritten;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                mWritten += len;
+                if (mWritten > DATA_SIZE) {
+                    throw new IOException("Disk full");
+                }
+            }
+        };
+
+        StreamDuplicator duplicator = new StreamDuplicator();
+        IOException[] errors = duplicator.duplicateToAll(new ByteArrayInputStream(inputData), new OutputStream[] {first, failing, last}, dataSize, null);
+
+        Assert.assertNull("First destination shouldn't have failed", errors[0]);
+        Assert.assertNotNull("Failing destination wasn't reported", errors[1]);
+        Assert.assertNull("Last destination shouldn't have failed", errors[2]);
+        Assert.assertArrayEquals("First destination doesn't match", inputData, first.toByteArray());
+        Assert.assertArrayEquals("Last destination doesn't match", inputData, last.toByteArray());
+    }
+
+    @Test
+    public void channelTransferFollowsDataAppendedWhileCopying() throws IOException, StreamDuplicationFailedException {
+        final int dataSize = DATA_SIZE * 2;
+        byte[] inputData = new byte[dataSize];
+
+        for(int i = 0; i < dataSize; i++) {
+            inputData[i] = (byte)(Math.random() * 255);
+        }
+
+        File srcFile = File.createTempFile("src", null);
+        File dstFile = File.createTempFile("dst", null);
+        srcFile.deleteOnExit();
+        dstFile.deleteOnExit();
+
+        final FileOutputStream srcWriter = new FileOutputStream(srcFile);
+        srcWriter.write(inputData, 0, DATA_SIZE);
+
+        FileInputStream is = new FileInputStream(srcFile);
+        FileOutputStream os = new FileOutputStream(dstFile);
+        final byte[] appended = Arrays.copyOfRange(inputData, DATA_SIZE, dataSize);
+
+        // The rest of the file shows up once the size it had has been copied
+        new StreamDuplicator().duplicate(is, os, new StreamDuplicator.OnDuplicationProgressListener() {
+            private boolean mAppended;
+
+            @Override
+            public void onDuplicationProgress(int bytesCopied) {
+                if (!mAppended) {
+                    mAppended = true;
+                    try {
+                        srcWriter.write(appended);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+        });
+        is.close();
+        os.close();
+        srcWriter.close();
+
+        byte[] outputData = new byte[(int) dstFile.length()];
+        FileInputStream dstReader = new FileInputStream(dstFile);
+        int read = 0;
+        while (read < outputData.length) {
+            read += dstReader.read(outputData, read, outputData.length - read);
+        }
+        dstReader.close();
+
+        Assert.assertArrayEquals("Appended data wasn't copied", inputData, outputData);
+    }
+
+    @Test
+    public void ioListenerSeesEveryCall() throws StreamDuplicationFailedException {
+        final int dataSize = DATA_SIZE * 4 + 17;
+        byte[] inputData = new byte[dataSize];
+
+        for(int i = 0; i < dataSize; i++) {
+            inputData[i] = (byte)(Math.random() * 255);
+        }
+
+        final AtomicInteger reads = new AtomicInteger();
+        final AtomicInteger readBytes = new AtomicInteger();
+        final AtomicInteger writes = new AtomicInteger();
+        final AtomicInteger writtenBytes = new AtomicInteger();
+
+        StreamDuplicator duplicator = new StreamDuplicator();
+        duplicator.setIoListener(new StreamDuplicator.OnIoListener() {
+            @Override
+            public void onRead(long nanos, int bytes) {
+                reads.incrementAndGet();
+                readBytes.addAndGet(bytes);
+            }
+
+            @Override
+            public void onWrite(long nanos, int bytes) {
+                writes.incrementAndGet();
+                writtenBytes.addAndGet(bytes);
+            }
+
+            @Override
+            public void onTransfer(long nanos, long bytes) {
+                Assert.fail("Streams can't be transferred");
+            }
+        });
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(dataSize);
+        duplicator.duplicate(new ByteArrayInputStream(inputData), outputStream, DATA_SIZE);
+
+        Assert.assertArrayEquals("Input data doesn't match output", inputData, outputStream.toByteArray());
+        Assert.assertEquals("End of stream read shouldn't be reported", 5, reads.get());
+        Assert.assertEquals(dataSize, readBytes.get());
+        Assert.assertEquals(5, writes.get());
+        Assert.assertEquals(dataSize, writtenBytes.get());
+    }
+}
@@ -0,0 +1,163 @@
+package com.adyrsoft.soul.service;
+
+import com.adyrsoft.soul.utils.StreamDuplicator;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+public class CopyJournalTest {
+    private static final String KEY = "copy";
+    private static final long BIG_LENGTH = 100L * 1024 * 1024;
+    private static final long CHECKPOINT = 2 * CopyJournal.CHECKPOINT_INTERVAL_BYTES;
+
+    @Test
+    public void doneEntriesAndCheckpointsSurviveReopening() throws IOException {
+        File journalDir = createTempDir();
+        String oddPath = "some dir/a\tfile\nwith%odd+chars";
+
+        CopyJournal journal = CopyJournal.open(journalDir, KEY);
+        journal.markDone(oddPath, 10, 20);
+        journal.checkpoint("big", CHECKPOINT, BIG_LENGTH, 30);
+        journal.close();
+
+        journal = CopyJournal.open(journalDir, KEY);
+        Assert.assertTrue(journal.isDone(oddPath, 10, 20));
+        Assert.assertFalse(journal.isDone("big", BIG_LENGTH, 30));
+        Assert.assertEquals(CHECKPOINT, journal.getResumeOffset("big", BIG_LENGTH, 30));
+        Assert.assertEquals(0, journal.getResumeOffset("other", BIG_LENGTH, 30));
+        journal.close();
+    }
+
+    @Test
+    public void entriesOfChangedSourcesAreIgnored() throws IOException {
+        File journalDir = createTempDir();
+
+        CopyJournal journal = CopyJournal.open(journalDir, KEY);
+        journal.markDone("small", 10, 20);
+        journal.checkpoint("big", CHECKPOINT, BIG_LENGTH, 30);
+        journal.close();
+
+        journal = CopyJournal.open(journalDir, KEY);
+        Assert.assertFalse("Length changed", journal.isDone("small", 11, 20));
+        Assert.assertFalse("Modification time changed", journal.isDone("small", 10, 21));
+        Assert.assertEquals("Length changed", 0, journal.getResumeOffset("big", BIG_LENGTH + 1, 30));
+        Assert.assertEquals("Modification time changed", 0, journal.getResumeOffset("big", BIG_LENGTH, 31));
+        journal.close();
+    }
+
+    @Test
+    public void markingDoneDropsCheckpoint() throws IOException {
+        File journalDir = createTempDir();
+
+        CopyJournal journal = CopyJournal.open(journalDir, KEY);
+        journal.checkpoint("big", CHECKPOINT, BIG_LENGTH, 30);
+        journal.markDone("big", BIG_LENGTH, 30);
+        journal.close();
+
+        journal = CopyJournal.open(journalDir, KEY);
+        Assert.assertTrue(journal.isDone("big", BIG_LENGTH, 30));
+        Assert.assertEquals(0, journal.getResumeOffset("big", BIG_LENGTH, 30));
+        journal.close();
+    }
+
+    @Test
+    public void halfWrittenLinesAreIgnored() throws IOException {
+        File journalDir = createTempDir();
+
+        CopyJournal journal = CopyJournal.open(journalDir, KEY);
+        journal.markDone("small", 10, 20);
+        journal.close();
+
+        // A run killed while appending, and a line of a journal without source information
+        FileOutputStream os = new FileOutputStream(new File(journalDir, KEY + ".done"), true);
+        try {
+            os.write("old\n10\t20\tbro%\n10\t2".getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+
+        journal = CopyJournal.open(journalDir, KEY);
+        Assert.assertTrue(journal.isDone("small", 10, 20));
+        Assert.assertFalse(journal.isDone("old", 10, 20));
+        journal.close();
+    }
+
+    @Test
+    public void deleteRemovesJournal() throws IOException {
+        File journalDir = createTempDir();
+
+        CopyJournal journal = CopyJournal.open(journalDir, KEY);
+        journal.markDone("small", 10, 20);
+        journal.checkpoint("big", CHECKPOINT, BIG_LENGTH, 30);
+        journal.delete();
+
+        journal = CopyJournal.open(journalDir, KEY);
+        Assert.assertFalse(journal.isDone("small", 10, 20));
+        Assert.assertEquals(0, journal.getResumeOffset("big", BIG_LENGTH, 30));
+        journal.delete();
+    }
+
+    @Test
+    public void resumesFromTruncatedDestination() throws Exception {
+        int length = 1024 * 1024;
+        byte[] data = new byte[length];
+        new Random(3).nextBytes(data);
+        File srcFile = File.createTempFile("src", null);
+        File dstFile = File.createTempFile("dst", null);
+        srcFile.deleteOnExit();
+        dstFile.deleteOnExit();
+        writeFile(srcFile, data);
+
+        File journalDir = createTempDir();
+        CopyJournal journal = CopyJournal.open(journalDir, KEY);
+        journal.checkpoint("file", length / 2, length, srcFile.lastModified());
+        journal.close();
+
+        // The destination lost part of what the checkpoint covers
+        writeFile(dstFile, Arrays.copyOf(data, length / 4));
+
+        journal = CopyJournal.open(journalDir, KEY);
+        long resumeOffset = journal.getResumeOffset("file", srcFile.length(), srcFile.lastModified());
+        Assert.assertEquals(length / 2, resumeOffset);
+        journal.close();
+
+        LocalFSEntryDuplicator duplicator = new LocalFSEntryDuplicator(new StreamDuplicator(), null);
+        duplicator.copyEntry(srcFile, dstFile, true, resumeOffset, null);
+
+        Assert.assertArrayEquals(data, readFile(dstFile));
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("journal", null);
+        Assert.assertTrue(dir.delete() && dir.mkdir());
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.readFully(data);
+        } finally {
+            raf.close();
+        }
+        return data;
+    }
+}
@@ -0,0 +1,118 @@
+package com.adyrsoft.soul.service;
+
+import com.adyrsoft.soul.utils.StreamDuplicator;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+public class LocalFSEntryDuplicatorTest {
+    private static final int DATA_SIZE = 1024 * 1024;
+
+    @Test
+    public void rangeSplitCopyResumesFromReportedPrefix() throws Exception {
+        byte[] data = new byte[DATA_SIZE];
+        new Random(7).nextBytes(data);
+        File srcFile = File.createTempFile("src", null);
+        File dstFile = File.createTempFile("dst", null);
+        srcFile.deleteOnExit();
+        dstFile.deleteOnExit();
+        writeFile(srcFile, data);
+
+        CopyOptions options = new CopyOptions.Builder()
+                .setRangeSplitThreshold(DATA_SIZE / 4)
+                .setRangeSplitParallelism(4)
+                .create();
+        LocalFSEntryDuplicator duplicator = new LocalFSEntryDuplicator(new StreamDuplicator(), null, options);
+
+        // Kills the copy once half of the file is known to be copied
+        final long[] prefix = new long[1];
+        StreamDuplicator.OnDuplicationProgressListener killer = new StreamDuplicator.OnDuplicationProgressListener() {
+            @Override
+            public void onDuplicationProgress(int bytesCopied) {
+                prefix[0] += bytesCopied;
+                if (prefix[0] >= DATA_SIZE / 2) {
+                    throw new IllegalStateException("Killed");
+                }
+            }
+        };
+
+        try {
+            duplicator.copyEntry(srcFile, dstFile, true, 0, killer);
+            Assert.fail("The copy wasn't killed");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        Assert.assertTrue(prefix[0] >= DATA_SIZE / 2 && prefix[0] <= DATA_SIZE);
+        byte[] copied = readFile(dstFile);
+        Assert.assertArrayEquals("Reported prefix wasn't copied", Arrays.copyOf(data, (int) prefix[0]), Arrays.copyOf(copied, (int) prefix[0]));
+
+        // Whatever the other ranges left past the prefix is discarded
+        duplicator.copyEntry(srcFile, dstFile, true, prefix[0], null);
+
+        Assert.assertArrayEquals(data, readFile(dstFile));
+    }
+
+    @Test
+    public void rangeSplitCopyReportsWholeFileAsPrefix() throws Exception {
+        byte[] data = new byte[DATA_SIZE + 123];
+        new Random(11).nextBytes(data);
+        File srcFile = File.createTempFile("src", null);
+        File dstFile = File.createTempFile("dst", null);
+        srcFile.deleteOnExit();
+        dstFile.deleteOnExit();
+        writeFile(srcFile, data);
+
+        CopyOptions options = new CopyOptions.Builder()
+                .setRangeSplitThreshold(DATA_SIZE / 4)
+                .setRangeSplitParallelism(3)
+                .create();
+        LocalFSEntryDuplicator duplicator = new LocalFSEntryDuplicator(new StreamDuplicator(), null, options);
+
+        final long[] prefix = new long[1];
+        duplicator.copyEntry(srcFile, dstFile, true, 0, new StreamDuplicator.OnDuplicationProgressListener() {
+            @Override
+            public void onDuplicationProgress(int bytesCopied) {
+                Assert.assertTrue(bytesCopied > 0);
+                prefix[0] += bytesCopied;
+            }
+        });
+
+        Assert.assertEquals(data.length, prefix[0]);
+        Assert.assertArrayEquals(data, readFile(dstFile));
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream is = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < data.length) {
+                int count = is.read(data, read, data.length - read);
+                if (count == -1) {
+                    break;
+                }
+                read += count;
+            }
+        } finally {
+            is.close();
+        }
+        return data;
+    }
+}